@@ -0,0 +1,84 @@
+package com.zackliston.taskmanager;
+
+/**
+ * Moves the concurrency limit by additive increase / multiplicative decrease, judged once per window of finished workers.
+ */
+class AdaptiveConcurrencyController
+{
+    //region Constants
+    static final double LATENCY_TOLERANCE       = 2.0;
+    static final double THROUGHPUT_TOLERANCE    = 0.9;
+    static final double DECREASE_FACTOR         = 0.75;
+    // How far the latency baseline moves towards a slower window, so it follows a workload that changed for good.
+    static final double BASELINE_DRIFT          = 0.1;
+    //endregion
+
+    //region Variables
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+
+    private int windowSampleCount;
+    private long windowLatencySum;
+    private long windowStartTime;
+    private boolean windowWasSaturated;
+
+    private double baselineLatency = -1;
+    private double lastThroughput = -1;
+    //endregion
+
+    //region Initialize
+    AdaptiveConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+    //endregion
+
+    //region Protected Methods
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param numberRunning How many workers were running, including this one, when it finished.
+     */
+    synchronized void onWorkerFinished(long latencyMillis, long nowMillis, int numberRunning) {
+        if (windowSampleCount == 0 && lastThroughput < 0) {
+            windowStartTime = nowMillis - latencyMillis;
+        }
+
+        windowSampleCount++;
+        windowLatencySum += Math.max(0, latencyMillis);
+        windowWasSaturated = windowWasSaturated || numberRunning >= limit;
+
+        if (windowSampleCount < limit) {
+            return;
+        }
+
+        double averageLatency = Math.max(1, (double) windowLatencySum / windowSampleCount);
+        double throughput = windowSampleCount * 1000.0 / Math.max(1, nowMillis - windowStartTime);
+
+        boolean latencyDegraded = baselineLatency > 0 && averageLatency > baselineLatency * LATENCY_TOLERANCE;
+        boolean throughputDropped = lastThroughput > 0 && throughput < lastThroughput * THROUGHPUT_TOLERANCE;
+
+        if (latencyDegraded || (throughputDropped && windowWasSaturated)) {
+            limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+        } else if (windowWasSaturated) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        if (baselineLatency < 0 || averageLatency < baselineLatency) {
+            baselineLatency = averageLatency;
+        } else {
+            baselineLatency += (averageLatency - baselineLatency) * BASELINE_DRIFT;
+        }
+        lastThroughput = throughput;
+
+        windowSampleCount = 0;
+        windowLatencySum = 0;
+        windowStartTime = nowMillis;
+        windowWasSaturated = false;
+    }
+    //endregion
+}
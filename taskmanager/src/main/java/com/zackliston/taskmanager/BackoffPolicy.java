@@ -0,0 +1,142 @@
+package com.zackliston.taskmanager;
+
+import java.util.Random;
+
+/**
+ * How long a failed work item waits before it is retried. The wait is stored as its not before time.
+ */
+public final class BackoffPolicy
+{
+    //region Type
+    enum Type {
+        NONE(0),
+        FIXED(1),
+        EXPONENTIAL(2),
+        EXPONENTIAL_WITH_JITTER(3);
+
+        private final int value;
+        Type(int value) {
+            this.value = value;
+        }
+        public int value() {
+            return this.value;
+        }
+
+        public static Type valueOf(int i) {
+            if (i == 1) {
+                return FIXED;
+            } else if (i == 2) {
+                return EXPONENTIAL;
+            } else if (i == 3) {
+                return EXPONENTIAL_WITH_JITTER;
+            }
+            return NONE;
+        }
+    }
+    //endregion
+
+    //region Constants
+    public static final BackoffPolicy NONE = new BackoffPolicy(Type.NONE, 0, 0);
+    //endregion
+
+    //region Variables
+    private final Type type;
+    private final long delayMillis;
+    private final long maxDelayMillis;
+    //endregion
+
+    //region Initialize
+    private BackoffPolicy(Type type, long delayMillis, long maxDelayMillis) {
+        this.type = type;
+        this.delayMillis = Math.max(0, delayMillis);
+        this.maxDelayMillis = Math.max(this.delayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Retries as soon as a worker is free, the behaviour before backoff policies existed.
+     */
+    public static BackoffPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * Waits delayMillis before every retry.
+     */
+    public static BackoffPolicy fixed(long delayMillis) {
+        return new BackoffPolicy(Type.FIXED, delayMillis, delayMillis);
+    }
+
+    /**
+     * Waits initialDelayMillis before the first retry and doubles the wait for every retry after it, up to maxDelayMillis.
+     */
+    public static BackoffPolicy exponential(long initialDelayMillis, long maxDelayMillis) {
+        return new BackoffPolicy(Type.EXPONENTIAL, initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Like exponential, but each wait is picked at random up to the exponential wait so retries do not line up.
+     */
+    public static BackoffPolicy exponentialWithJitter(long initialDelayMillis, long maxDelayMillis) {
+        return new BackoffPolicy(Type.EXPONENTIAL_WITH_JITTER, initialDelayMillis, maxDelayMillis);
+    }
+
+    static BackoffPolicy fromStoredValues(int type, long delayMillis, long maxDelayMillis) {
+        Type storedType = Type.valueOf(type);
+        return (storedType == Type.NONE) ? NONE : new BackoffPolicy(storedType, delayMillis, maxDelayMillis);
+    }
+    //endregion
+
+    //region Getters
+    Type type() {
+        return type;
+    }
+
+    long delayMillis() {
+        return delayMillis;
+    }
+
+    long maxDelayMillis() {
+        return maxDelayMillis;
+    }
+    //endregion
+
+    //region Protected Methods
+    /**
+     * @param retryCount The retry count of the work item after the failure, 1 before the first retry.
+     */
+    long delayBeforeRetry(int retryCount, Random random) {
+        switch (type) {
+            case FIXED:
+                return delayMillis;
+            case EXPONENTIAL:
+                return exponentialDelay(retryCount);
+            case EXPONENTIAL_WITH_JITTER:
+                return (long) (random.nextDouble() * (exponentialDelay(retryCount) + 1));
+            default:
+                return 0;
+        }
+    }
+
+    private long exponentialDelay(int retryCount) {
+        long delay = delayMillis;
+        for (int i=1; i<retryCount && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelayMillis);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof BackoffPolicy)) {
+            return false;
+        }
+        BackoffPolicy other = (BackoffPolicy) object;
+        return type == other.type && delayMillis == other.delayMillis && maxDelayMillis == other.maxDelayMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (type.value() * 31 + delayMillis * 17 + maxDelayMillis);
+    }
+    //endregion
+}
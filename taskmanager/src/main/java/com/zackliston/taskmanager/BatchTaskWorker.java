@@ -0,0 +1,59 @@
+package com.zackliston.taskmanager;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Runs several work items of one task type in one worker slot. It finishes once every work item has been reported.
+ */
+public abstract class BatchTaskWorker extends TaskWorker
+{
+    //region Variables
+    private List<InternalWorkItem> workItems;
+    private final IdentityHashMap<InternalWorkItem, Boolean> resultByWorkItem = new IdentityHashMap<>();
+    //endregion
+
+    //region Getters/Setters
+    protected List<InternalWorkItem> workItems() {
+        return workItems;
+    }
+
+    protected boolean isFinalAttempt(InternalWorkItem workItem) {
+        return workItem.getRetryCount() >= (workItem.getMaxRetries()-1);
+    }
+    //endregion
+
+    public void setupWithWorkItems(List<InternalWorkItem> workItems) {
+        this.workItems = workItems;
+    }
+
+    protected synchronized void workItemFinishedWasSuccessful(InternalWorkItem workItem, boolean wasSuccessful) {
+        if (!workItems.contains(workItem) || resultByWorkItem.containsKey(workItem)) {
+            return;
+        }
+
+        resultByWorkItem.put(workItem, wasSuccessful);
+        if (resultByWorkItem.size() == workItems.size()) {
+            super.taskFinishedWasSuccessful(true);
+        }
+    }
+
+    // Finishes early, the work items that were not reported yet get the same result.
+    @Override
+    protected synchronized void taskFinishedWasSuccessful(boolean wasSuccessful) {
+        for (InternalWorkItem workItem : workItems) {
+            if (!resultByWorkItem.containsKey(workItem)) {
+                resultByWorkItem.put(workItem, wasSuccessful);
+            }
+        }
+        super.taskFinishedWasSuccessful(wasSuccessful);
+    }
+
+    /**
+     * @return Whether the work item succeeded, false if it was never reported.
+     */
+    synchronized boolean wasWorkItemSuccessful(InternalWorkItem workItem) {
+        Boolean result = resultByWorkItem.get(workItem);
+        return result != null && result;
+    }
+}
@@ -0,0 +1,20 @@
+package com.zackliston.taskmanager;
+
+/**
+ * What happens when a task is queued with the coalescing key of a work item that is still READY.
+ * Either way no second work item is added.
+ */
+public enum CoalescePolicy {
+    /**
+     * The queued work item is left as it is and the new task is dropped.
+     */
+    KEEP,
+    /**
+     * The queued work item takes the payload of the new task, so it runs with the latest data.
+     */
+    REPLACE_PAYLOAD,
+    /**
+     * The queued work item takes the priority of the new task if it is higher.
+     */
+    MAX_PRIORITY
+}
@@ -0,0 +1,106 @@
+package com.zackliston.taskmanager;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shares the open slots of a scheduling pass between task types by deficit round robin. Only used on the dispatcher thread.
+ */
+class DeficitRoundRobin
+{
+    //region Variables
+    private final ArrayDeque<String> activeTaskTypes = new ArrayDeque<>();
+    private final HashMap<String, Integer> deficitByTaskType = new HashMap<>();
+    // The task type at the head has already earned its credit for the current turn.
+    private boolean isHeadTurnStarted;
+    //endregion
+
+    //region Protected Methods
+    /**
+     * @return How many work items each task type should get, a missing weight or one below 1 counts as 1.
+     */
+    HashMap<String, Integer> allocate(Map<String, Integer> backlogByTaskType, Map<String, Integer> weightByTaskType, int numberOfSlots) {
+        updateActiveTaskTypes(backlogByTaskType);
+
+        HashMap<String, Integer> allocationByTaskType = new HashMap<>();
+        while (numberOfSlots > 0 && !activeTaskTypes.isEmpty()) {
+            String taskType = activeTaskTypes.peekFirst();
+            int deficit = deficitByTaskType.get(taskType);
+            if (!isHeadTurnStarted) {
+                deficit += weightOfTaskType(weightByTaskType, taskType);
+                isHeadTurnStarted = true;
+            }
+
+            Integer allocated = allocationByTaskType.get(taskType);
+            allocated = (allocated != null) ? allocated : 0;
+            int backlog = backlogByTaskType.get(taskType) - allocated;
+
+            int served = Math.min(deficit, Math.min(backlog, numberOfSlots));
+            if (served > 0) {
+                allocationByTaskType.put(taskType, allocated + served);
+            }
+            deficit -= served;
+            numberOfSlots -= served;
+
+            if (served == backlog) {
+                // Nothing left to run, a task type does not keep credit while it is idle.
+                activeTaskTypes.removeFirst();
+                deficitByTaskType.remove(taskType);
+                isHeadTurnStarted = false;
+            } else if (deficit < 1) {
+                activeTaskTypes.removeFirst();
+                activeTaskTypes.addLast(taskType);
+                deficitByTaskType.put(taskType, deficit);
+                isHeadTurnStarted = false;
+            } else {
+                // Out of slots in the middle of a turn, the next pass carries on with it.
+                deficitByTaskType.put(taskType, deficit);
+            }
+        }
+        return allocationByTaskType;
+    }
+
+    /**
+     * Gives back the credit of work items that were allocated but could not be claimed.
+     */
+    void refund(String taskType, int count) {
+        Integer deficit = deficitByTaskType.get(taskType);
+        if (deficit != null && count > 0) {
+            deficitByTaskType.put(taskType, deficit + count);
+        }
+    }
+    //endregion
+
+    //region Helpers
+    private void updateActiveTaskTypes(Map<String, Integer> backlogByTaskType) {
+        boolean isHead = true;
+        Iterator<String> iterator = activeTaskTypes.iterator();
+        while (iterator.hasNext()) {
+            String taskType = iterator.next();
+            Integer backlog = backlogByTaskType.get(taskType);
+            if (backlog == null || backlog < 1) {
+                iterator.remove();
+                deficitByTaskType.remove(taskType);
+                if (isHead) {
+                    isHeadTurnStarted = false;
+                }
+            }
+            isHead = false;
+        }
+
+        for (Map.Entry<String, Integer> entry : backlogByTaskType.entrySet()) {
+            if (entry.getValue() > 0 && !deficitByTaskType.containsKey(entry.getKey())) {
+                activeTaskTypes.addLast(entry.getKey());
+                deficitByTaskType.put(entry.getKey(), 0);
+            }
+        }
+    }
+
+    private static int weightOfTaskType(Map<String, Integer> weightByTaskType, String taskType) {
+        Integer weight = weightByTaskType.get(taskType);
+        return (weight != null) ? Math.max(1, weight) : 1;
+    }
+    //endregion
+}
@@ -4,6 +4,17 @@ package com.zackliston.taskmanager;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Zack Liston on 2/25/15.
  */
@@ -14,6 +25,10 @@ public class InternalWorkItem
     //region Properties
     private int id;
     private String taskType;
+    private byte[] payload;
+    private PayloadCodec payloadCodec;
+    private File payloadFile;
+    private boolean payloadLoaded;
     private String data;
     private JSONObject jsonData;
     private WorkItemState state;
@@ -24,6 +39,12 @@ public class InternalWorkItem
     private boolean requiresInternet;
     private int maxRetries;
     private boolean shouldHold;
+    private long notBefore;
+    private BackoffPolicy backoffPolicy = BackoffPolicy.NONE;
+    private String coalescingKey;
+    private CoalescePolicy coalescePolicy = CoalescePolicy.KEEP;
+    // Only set on work items that are about to be added, the dependency table is the source of truth after that.
+    private List<InternalWorkItem> prerequisites = new ArrayList<>();
     //endregion
 
     //region Getters/Setters
@@ -43,17 +64,27 @@ public class InternalWorkItem
         this.taskType = taskType;
     }
 
+    /**
+     * @return The payload as text if it was stored with the JSON codec, otherwise null.
+     */
     public String getData() {
+        if (data == null && payloadCodec == PayloadCodec.JSON && getPayload() != null) {
+            data = stringFromUTF8Bytes(payload);
+        }
         return data;
     }
 
     void setData(String data) {
         this.data = data;
         this.jsonData = null;
+        this.payload = (data != null) ? utf8BytesFromString(data) : null;
+        this.payloadCodec = PayloadCodec.JSON;
+        this.payloadFile = null;
+        this.payloadLoaded = true;
     }
 
     public JSONObject getJsonData() {
-        if (jsonData == null && this.data != null) {
+        if (jsonData == null && getData() != null) {
             try {
                 jsonData = new JSONObject(this.data);
             } catch (JSONException exception) {
@@ -64,12 +95,74 @@ public class InternalWorkItem
     }
 
     void setJsonData(JSONObject jsonData) {
-        this.jsonData = jsonData;
         if (jsonData != null) {
-            this.data = jsonData.toString();
+            setData(jsonData.toString());
         } else {
-            this.data = null;
+            setData(null);
+        }
+        this.jsonData = jsonData;
+    }
+
+    /**
+     * The payload bytes exactly as they were queued. Workers that queued raw bytes can read them here without any parsing.
+     */
+    public byte[] getPayload() {
+        if (payload == null && payloadFile != null) {
+            try {
+                payload = payloadCodec.decode(bytesFromFile(payloadFile));
+            } catch (IOException exception) {
+                System.out.println("Could not read payload file " + payloadFile + exception);
+            }
         }
+        return payload;
+    }
+
+    /**
+     * Streams the payload instead of loading it into memory. Large payloads are kept in a file
+     * and this reads them straight from disk, so prefer it over getPayload for big payloads.
+     * The caller must close the stream.
+     *
+     * @return A stream of the payload bytes, or null if there is no payload.
+     */
+    public InputStream openPayloadStream() throws IOException {
+        if (payload == null && payloadFile != null) {
+            return payloadCodec.decodingStream(new BufferedInputStream(new FileInputStream(payloadFile)));
+        }
+        return (payload != null) ? new ByteArrayInputStream(payload) : null;
+    }
+
+    public PayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    void setPayload(byte[] payload, PayloadCodec payloadCodec) {
+        this.payload = payload;
+        this.payloadCodec = (payloadCodec != null) ? payloadCodec : PayloadCodec.RAW;
+        this.payloadFile = null;
+        this.payloadLoaded = true;
+        this.data = null;
+        this.jsonData = null;
+    }
+
+    /**
+     * Points the payload at a file holding its stored bytes. The file is only read when the payload is first used.
+     */
+    void setPayloadFile(File payloadFile, PayloadCodec payloadCodec) {
+        setPayload(null, payloadCodec);
+        this.payloadFile = payloadFile;
+    }
+
+    File getPayloadFile() {
+        return payloadFile;
+    }
+
+    /**
+     * Work items read from the database do not carry their payload until it is loaded separately.
+     *
+     * @return Whether the payload has been set or loaded, even if it is null.
+     */
+    boolean isPayloadLoaded() {
+        return payloadLoaded;
     }
 
     public WorkItemState getState() {
@@ -135,6 +228,82 @@ public class InternalWorkItem
     void setShouldHold(boolean shouldHold) {
         this.shouldHold = shouldHold;
     }
+
+    public long getNotBefore() {
+        return notBefore;
+    }
+
+    void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    public BackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = (backoffPolicy != null) ? backoffPolicy : BackoffPolicy.NONE;
+    }
+
+    public String getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    void setCoalescingKey(String coalescingKey) {
+        this.coalescingKey = coalescingKey;
+    }
+
+    CoalescePolicy getCoalescePolicy() {
+        return coalescePolicy;
+    }
+
+    void setCoalescePolicy(CoalescePolicy coalescePolicy) {
+        this.coalescePolicy = (coalescePolicy != null) ? coalescePolicy : CoalescePolicy.KEEP;
+    }
+
+    List<InternalWorkItem> getPrerequisites() {
+        return prerequisites;
+    }
+
+    /**
+     * @param prerequisites Work items that must complete before this one runs. Either work items added in the same
+     *                      batch before this one, or work items that were already added and have their id set.
+     */
+    void setPrerequisites(List<InternalWorkItem> prerequisites) {
+        this.prerequisites = (prerequisites != null) ? prerequisites : new ArrayList<InternalWorkItem>();
+    }
     //endregion
 
+    //region Helpers
+    private static byte[] utf8BytesFromString(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException("UTF-8 is not supported " + exception);
+        }
+    }
+
+    private static byte[] bytesFromFile(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, length);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static String stringFromUTF8Bytes(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new IllegalStateException("UTF-8 is not supported " + exception);
+        }
+    }
+    //endregion
 }
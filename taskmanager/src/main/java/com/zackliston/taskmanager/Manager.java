@@ -1,5 +1,7 @@
 package com.zackliston.taskmanager;
 
+import java.util.List;
+
 /**
  * Created by Zack Liston on 3/2/15.
  */
@@ -8,4 +10,25 @@ public abstract class Manager
     protected abstract TaskWorker taskWorkerForWorkItem(InternalWorkItem workItem);
 
     protected void workItemDidFail(InternalWorkItem workItem) {}
+
+    /**
+     * Return more than 1 to have work items of this task type handed out in batches through batchTaskWorkerForWorkItems.
+     */
+    protected int maxBatchSize() {
+        return 1;
+    }
+
+    /**
+     * Only called when maxBatchSize is more than 1. Gets between 1 and maxBatchSize work items of one task type, in the order they should be executed.
+     */
+    protected BatchTaskWorker batchTaskWorkerForWorkItems(List<InternalWorkItem> workItems) {
+        return null;
+    }
+
+    /**
+     * Only used with weighted fair scheduling. A task type with weight 2 gets twice the slots of one with weight 1 while both have work waiting.
+     */
+    protected int schedulingWeight() {
+        return 1;
+    }
 }
@@ -0,0 +1,111 @@
+package com.zackliston.taskmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Describes how a work item's payload bytes are interpreted and how they are stored in the database.
+ * The value of each codec is persisted with the payload, so existing values must never change.
+ */
+public enum PayloadCodec {
+    /**
+     * UTF-8 encoded JSON text. This is what Task.setJsonData produces and what InternalWorkItem.getJsonData parses.
+     */
+    JSON(0),
+    /**
+     * Opaque bytes, stored as they are.
+     */
+    RAW(1),
+    /**
+     * Opaque bytes, stored deflate compressed. Workers still see the uncompressed bytes.
+     */
+    DEFLATE(2);
+
+    private final int value;
+    PayloadCodec(int value) {
+        this.value = value;
+    }
+    public int value() {
+        return this.value;
+    }
+
+    public static PayloadCodec valueOf(int i) {
+        if (i == 0) {
+            return JSON;
+        } else if (i == 1) {
+            return RAW;
+        } else if (i == 2) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * @return The bytes to store for the given payload.
+     */
+    byte[] encode(byte[] payload) {
+        if (payload == null || this != DEFLATE) {
+            return payload;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(payload);
+        deflater.finish();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(payload.length / 2 + 16);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            outputStream.write(buffer, 0, length);
+        }
+        deflater.end();
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return The payload for the given stored bytes, or null if they could not be decoded.
+     */
+    byte[] decode(byte[] storedBytes) {
+        if (storedBytes == null || this != DEFLATE) {
+            return storedBytes;
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(storedBytes);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(storedBytes.length * 2);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    System.out.println("Could not inflate payload, the stored bytes are truncated.");
+                    return null;
+                }
+                outputStream.write(buffer, 0, length);
+            }
+        } catch (DataFormatException exception) {
+            System.out.println("Could not inflate payload " + exception);
+            return null;
+        } finally {
+            inflater.end();
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return A stream of the payload for a stream of stored bytes.
+     */
+    InputStream decodingStream(InputStream storedStream) {
+        if (this != DEFLATE) {
+            return storedStream;
+        }
+        return new InflaterInputStream(storedStream);
+    }
+}
@@ -0,0 +1,111 @@
+package com.zackliston.taskmanager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps payloads that are too large for the work_item table as files, named by the SHA-1 of their contents.
+ * Identical payloads share one file, so a file may only be deleted once no work item refers to it anymore.
+ */
+class PayloadFileStore
+{
+    //region Constants
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    //endregion
+
+    //region Variables
+    private final File directory;
+    //endregion
+
+    //region Initialization
+    PayloadFileStore(File directory) {
+        this.directory = directory;
+    }
+    //endregion
+
+    //region Protected Methods
+    /**
+     * Writes the bytes unless a file with the same contents already exists.
+     *
+     * @return The name to store in the database for the bytes.
+     */
+    String write(byte[] bytes) throws IOException {
+        String name = nameForBytes(bytes);
+        File file = fileForName(name);
+        if (file.exists()) {
+            return name;
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create payload directory " + directory);
+        }
+
+        // Write to a temporary file first so a crash never leaves a truncated payload under its final name.
+        File temporaryFile = new File(directory, name + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not move payload into place " + file);
+        }
+        return name;
+    }
+
+    File fileForName(String name) {
+        return new File(directory, name);
+    }
+
+    boolean delete(String name) {
+        return fileForName(name).delete();
+    }
+
+    /**
+     * @return The names of every payload file, including temporary files left behind by an interrupted write.
+     */
+    List<String> allNames() {
+        ArrayList<String> names = new ArrayList<>();
+        String[] fileNames = directory.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                names.add(fileName);
+            }
+        }
+        return names;
+    }
+
+    void deleteAll() {
+        for (String name : allNames()) {
+            delete(name);
+        }
+    }
+    //endregion
+
+    //region Helpers
+    private String nameForBytes(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-1 is not supported " + exception);
+        }
+
+        byte[] hash = digest.digest(bytes);
+        StringBuilder name = new StringBuilder(hash.length * 2);
+        for (byte hashByte : hash) {
+            name.append(String.format("%02x", hashByte & 0xff));
+        }
+        return name.toString();
+    }
+    //endregion
+}
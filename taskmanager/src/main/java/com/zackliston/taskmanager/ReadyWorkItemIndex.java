@@ -0,0 +1,327 @@
+package com.zackliston.taskmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The READY work items in the order they should run, kept in step by WorkItemDatabaseHelper. The database stays the source of truth.
+ */
+class ReadyWorkItemIndex
+{
+    //region Constants
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long TIME_CREATED_MASK = 0xFFFFFFFFL;
+    //endregion
+
+    //region Variables
+    private final int priorityAgingPerMinute;
+    // Full millisecond clock, see agedPriority.
+    private final long agingAnchorTime;
+
+    private final HashMap<Integer, Entry> entriesById = new HashMap<>();
+    private final HashMap<String, TreeSet<Entry>> entriesWithoutInternetByTaskType = new HashMap<>();
+    private final HashMap<String, TreeSet<Entry>> entriesWithInternetByTaskType = new HashMap<>();
+    // Entries that are not due yet, promoteDueEntries moves them into the sets above.
+    private final TreeSet<Entry> deferredEntries = new TreeSet<>(NOT_BEFORE_ORDER);
+    //endregion
+
+    //region Initialize
+    ReadyWorkItemIndex() {
+        this(0, 0);
+    }
+
+    ReadyWorkItemIndex(int priorityAgingPerMinute, long agingAnchorTime) {
+        this.priorityAgingPerMinute = priorityAgingPerMinute;
+        this.agingAnchorTime = agingAnchorTime;
+    }
+    //endregion
+
+    //region Protected Methods
+    synchronized void add(int id, InternalWorkItem workItem) {
+        add(id, workItem, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now The current time on the full millisecond clock, used to work out how long the work item has waited.
+     */
+    synchronized void add(int id, InternalWorkItem workItem, long now) {
+        remove(id);
+
+        Entry entry = new Entry(id, workItem, agedPriority(workItem.getMajorPriority(), workItem.getTimeCreated(), now));
+        entriesById.put(id, entry);
+        if (entry.notBefore > 0) {
+            // Even if it is already due, the next promoteDueEntries moves it over.
+            deferredEntries.add(entry);
+        } else {
+            setForEntry(entry, true).add(entry);
+        }
+    }
+
+    synchronized void remove(int id) {
+        Entry entry = entriesById.remove(id);
+        if (entry != null && !deferredEntries.remove(entry)) {
+            TreeSet<Entry> entries = setForEntry(entry, false);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                mapForEntry(entry).remove(entry.taskType);
+            }
+        }
+    }
+
+    synchronized void removeTaskType(String taskType) {
+        removeEntries(entriesWithoutInternetByTaskType.remove(taskType));
+        removeEntries(entriesWithInternetByTaskType.remove(taskType));
+
+        Iterator<Entry> iterator = deferredEntries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.taskType.equals(taskType)) {
+                iterator.remove();
+                entriesById.remove(entry.id);
+            }
+        }
+    }
+
+    synchronized void changePriorityOfTaskType(String taskType, int newMajorPriority) {
+        ArrayList<Entry> changedEntries = new ArrayList<>();
+        addEntries(changedEntries, entriesWithoutInternetByTaskType.get(taskType));
+        addEntries(changedEntries, entriesWithInternetByTaskType.get(taskType));
+        for (Entry entry : deferredEntries) {
+            if (entry.taskType.equals(taskType)) {
+                changedEntries.add(entry);
+            }
+        }
+
+        for (Entry entry : changedEntries) {
+            InternalWorkItem workItem = entry.toWorkItem();
+            workItem.setMajorPriority(newMajorPriority);
+            add(entry.id, workItem);
+        }
+    }
+
+    /**
+     * @return Up to limit READY work items of the given task types in the order they should be executed.
+     * The work items are copies without their payload, they stay in the index until they are removed.
+     */
+    synchronized ArrayList<InternalWorkItem> nextWorkItems(Set<String> taskTypes, boolean hasInternet, int limit) {
+        return nextWorkItems(taskTypes, null, hasInternet, limit);
+    }
+
+    /**
+     * Same as nextWorkItems, but never returns more work items of a task type than limitByTaskType allows.
+     * Task types missing from limitByTaskType, or all of them if it is null, are only bound by limit.
+     */
+    synchronized ArrayList<InternalWorkItem> nextWorkItems(Set<String> taskTypes, Map<String, Integer> limitByTaskType, boolean hasInternet, int limit) {
+        // Each set is already sorted, so only the first limit entries of each can make the cut.
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (String taskType : taskTypes) {
+            int limitOfTaskType = limitOfTaskType(limitByTaskType, taskType, limit);
+            addFirstEntries(candidates, entriesWithoutInternetByTaskType.get(taskType), limitOfTaskType);
+            if (hasInternet) {
+                addFirstEntries(candidates, entriesWithInternetByTaskType.get(taskType), limitOfTaskType);
+            }
+        }
+        Collections.sort(candidates, DISPATCH_ORDER);
+
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>(Math.min(limit, candidates.size()));
+        HashMap<String, Integer> countByTaskType = (limitByTaskType != null) ? new HashMap<String, Integer>() : null;
+        for (int i=0; i<candidates.size() && workItems.size()<limit; i++) {
+            Entry entry = candidates.get(i);
+            if (countByTaskType != null) {
+                // The with and without internet sets of one task type are capped separately above, so they can still add up to too many.
+                Integer count = countByTaskType.get(entry.taskType);
+                count = (count != null) ? count + 1 : 1;
+                if (count > limitOfTaskType(limitByTaskType, entry.taskType, limit)) {
+                    continue;
+                }
+                countByTaskType.put(entry.taskType, count);
+            }
+            workItems.add(entry.toWorkItem());
+        }
+        return workItems;
+    }
+
+    /**
+     * @return The number of entries of each of the given task types that could run, task types without any are left out.
+     */
+    synchronized HashMap<String, Integer> countByTaskType(Set<String> taskTypes, boolean hasInternet) {
+        HashMap<String, Integer> countByTaskType = new HashMap<>();
+        for (String taskType : taskTypes) {
+            int count = sizeOf(entriesWithoutInternetByTaskType.get(taskType));
+            if (hasInternet) {
+                count += sizeOf(entriesWithInternetByTaskType.get(taskType));
+            }
+            if (count > 0) {
+                countByTaskType.put(taskType, count);
+            }
+        }
+        return countByTaskType;
+    }
+
+    /**
+     * Makes every deferred entry whose not before time is at or before now available to nextWorkItems.
+     */
+    synchronized void promoteDueEntries(long now) {
+        while (!deferredEntries.isEmpty() && deferredEntries.first().notBefore <= now) {
+            Entry entry = deferredEntries.pollFirst();
+            setForEntry(entry, true).add(entry);
+        }
+    }
+
+    /**
+     * @return The earliest not before time of the entries that are still deferred, or 0 if there are none.
+     */
+    synchronized long earliestNotBefore() {
+        return (deferredEntries.isEmpty()) ? 0 : deferredEntries.first().notBefore;
+    }
+
+    synchronized int size() {
+        return entriesById.size();
+    }
+    //endregion
+
+    //region Helpers
+    private HashMap<String, TreeSet<Entry>> mapForEntry(Entry entry) {
+        return (entry.requiresInternet) ? entriesWithInternetByTaskType : entriesWithoutInternetByTaskType;
+    }
+
+    private TreeSet<Entry> setForEntry(Entry entry, boolean create) {
+        HashMap<String, TreeSet<Entry>> map = mapForEntry(entry);
+        TreeSet<Entry> entries = map.get(entry.taskType);
+        if (entries == null) {
+            entries = new TreeSet<>(DISPATCH_ORDER);
+            if (create) {
+                map.put(entry.taskType, entries);
+            }
+        }
+        return entries;
+    }
+
+    private void removeEntries(TreeSet<Entry> entries) {
+        if (entries != null) {
+            for (Entry entry : entries) {
+                entriesById.remove(entry.id);
+            }
+        }
+    }
+
+    private static void addEntries(ArrayList<Entry> list, TreeSet<Entry> entries) {
+        if (entries != null) {
+            list.addAll(entries);
+        }
+    }
+
+    // The priority at agingAnchorTime, every entry ages at the same rate so it never has to be updated.
+    // time_created only keeps the low 32 bits of the clock, so only its age is taken from it.
+    private long agedPriority(int majorPriority, int timeCreated, long now) {
+        long age = ((int) now - timeCreated) & TIME_CREATED_MASK;
+        long ageAtAnchor = age - (now - agingAnchorTime);
+        return majorPriority * MILLIS_PER_MINUTE + priorityAgingPerMinute * ageAtAnchor;
+    }
+
+    private static int sizeOf(TreeSet<Entry> entries) {
+        return (entries != null) ? entries.size() : 0;
+    }
+
+    private static int limitOfTaskType(Map<String, Integer> limitByTaskType, String taskType, int limit) {
+        Integer limitOfTaskType = (limitByTaskType != null) ? limitByTaskType.get(taskType) : null;
+        return (limitOfTaskType != null) ? Math.min(limit, limitOfTaskType) : limit;
+    }
+
+    private static void addFirstEntries(ArrayList<Entry> list, TreeSet<Entry> entries, int limit) {
+        if (entries == null) {
+            return;
+        }
+        Iterator<Entry> iterator = entries.iterator();
+        for (int i=0; i<limit && iterator.hasNext(); i++) {
+            list.add(iterator.next());
+        }
+    }
+    //endregion
+
+    //region Entry
+    // Highest priority first, then fewest retries, then newest, with the id as a final tie breaker so distinct work items never compare equal.
+    // Without aging the aged priority is the major priority scaled, so it sorts exactly like it.
+    private static final Comparator<Entry> DISPATCH_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.agedPriority != rhs.agedPriority) {
+                return (lhs.agedPriority > rhs.agedPriority) ? -1 : 1;
+            }
+            if (lhs.minorPriority != rhs.minorPriority) {
+                return (lhs.minorPriority > rhs.minorPriority) ? -1 : 1;
+            }
+            if (lhs.retryCount != rhs.retryCount) {
+                return (lhs.retryCount < rhs.retryCount) ? -1 : 1;
+            }
+            if (lhs.timeCreated != rhs.timeCreated) {
+                return (lhs.timeCreated > rhs.timeCreated) ? -1 : 1;
+            }
+            return (lhs.id < rhs.id) ? -1 : ((lhs.id == rhs.id) ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> NOT_BEFORE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.notBefore != rhs.notBefore) {
+                return (lhs.notBefore < rhs.notBefore) ? -1 : 1;
+            }
+            return (lhs.id < rhs.id) ? -1 : ((lhs.id == rhs.id) ? 0 : 1);
+        }
+    };
+
+    private static final class Entry {
+        final int id;
+        final String taskType;
+        final int majorPriority;
+        final int minorPriority;
+        final int retryCount;
+        final int timeCreated;
+        final boolean requiresInternet;
+        final int maxRetries;
+        final boolean shouldHold;
+        final long agedPriority;
+        final long notBefore;
+        final BackoffPolicy backoffPolicy;
+
+        Entry(int id, InternalWorkItem workItem, long agedPriority) {
+            this.id = id;
+            this.agedPriority = agedPriority;
+            this.taskType = workItem.getTaskType();
+            this.majorPriority = workItem.getMajorPriority();
+            this.minorPriority = workItem.getMinorPriority();
+            this.retryCount = workItem.getRetryCount();
+            this.timeCreated = workItem.getTimeCreated();
+            this.requiresInternet = workItem.isRequiresInternet();
+            this.maxRetries = workItem.getMaxRetries();
+            this.shouldHold = workItem.isShouldHold();
+            this.notBefore = workItem.getNotBefore();
+            this.backoffPolicy = workItem.getBackoffPolicy();
+        }
+
+        InternalWorkItem toWorkItem() {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setId(id);
+            workItem.setTaskType(taskType);
+            workItem.setState(WorkItemState.READY);
+            workItem.setMajorPriority(majorPriority);
+            workItem.setMinorPriority(minorPriority);
+            workItem.setRetryCount(retryCount);
+            workItem.setTimeCreated(timeCreated);
+            workItem.setRequiresInternet(requiresInternet);
+            workItem.setMaxRetries(maxRetries);
+            workItem.setShouldHold(shouldHold);
+            workItem.setNotBefore(notBefore);
+            workItem.setBackoffPolicy(backoffPolicy);
+            return workItem;
+        }
+    }
+    //endregion
+}
@@ -2,6 +2,9 @@ package com.zackliston.taskmanager;
 
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Zack Liston on 3/2/15.
  */
@@ -14,11 +17,20 @@ public class Task
     //region Variables
     private String taskType;
     private JSONObject jsonData;
+    private byte[] payload;
+    private PayloadCodec payloadCodec;
     private int majorPriority;
     private int minorPriority;
     private boolean requiresInternet;
     private int maxRetries;
     private boolean shouldHoldAfterMaxRetries;
+    private long notBefore;
+    private BackoffPolicy backoffPolicy;
+    private String coalescingKey;
+    private CoalescePolicy coalescePolicy = CoalescePolicy.KEEP;
+    private final ArrayList<Task> prerequisites = new ArrayList<>();
+    // The id of the work item the task was queued as, 0 until it is queued.
+    private int workItemId;
     //endregion
 
     //region Initializer
@@ -54,6 +66,30 @@ public class Task
         this.jsonData = jsonData;
     }
 
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public PayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Queues the bytes as they are. Workers read them back with InternalWorkItem.getPayload.
+     */
+    public void setPayload(byte[] payload) {
+        setPayload(payload, PayloadCodec.RAW);
+    }
+
+    /**
+     * When a payload is set it is used instead of the json data.
+     * Use PayloadCodec.DEFLATE to store large, compressible payloads compressed.
+     */
+    public void setPayload(byte[] payload, PayloadCodec payloadCodec) {
+        this.payload = payload;
+        this.payloadCodec = payloadCodec;
+    }
+
     public int getMajorPriority() {
         return majorPriority;
     }
@@ -93,5 +129,75 @@ public class Task
     public void setShouldHoldAfterMaxRetries(boolean shouldHoldAfterMaxRetries) {
         this.shouldHoldAfterMaxRetries = shouldHoldAfterMaxRetries;
     }
+
+    public long getNotBefore() {
+        return notBefore;
+    }
+
+    /**
+     * @param notBefore The System.currentTimeMillis() time before which the task will not be started. 0, the default, runs it as soon as possible.
+     */
+    public void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    public BackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    /**
+     * @param backoffPolicy How long to wait before each retry of this task. null, the default, uses the default backoff policy of the TaskManagerConfiguration.
+     */
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    public String getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    /**
+     * @param coalescingKey While a READY work item of the same task type with the same key is queued, queueing this task merges into it
+     *                      by the coalesce policy instead of adding a second work item. Once a work item has started
+     *                      it no longer takes part, so a task queued after that runs again. null, the default, never merges.
+     *                      Tasks with prerequisites never merge.
+     */
+    public void setCoalescingKey(String coalescingKey) {
+        this.coalescingKey = coalescingKey;
+    }
+
+    public CoalescePolicy getCoalescePolicy() {
+        return coalescePolicy;
+    }
+
+    /**
+     * @param coalescePolicy How this task merges into a queued work item with the same coalescing key. KEEP is the default.
+     */
+    public void setCoalescePolicy(CoalescePolicy coalescePolicy) {
+        this.coalescePolicy = (coalescePolicy != null) ? coalescePolicy : CoalescePolicy.KEEP;
+    }
+
+    public List<Task> getPrerequisites() {
+        return prerequisites;
+    }
+
+    /**
+     * The task will not start until the prerequisite has completed successfully. Tasks that do not depend on
+     * each other still run in parallel, so a chain or tree of tasks can be queued at once.
+     * The prerequisite must be queued before this task, or come before it in the same queueTasks call.
+     * While the prerequisite is held this task waits with it. If the prerequisite fails for good or is removed, this task is removed as well.
+     * A task whose prerequisite has already failed for good or been removed by the time it is queued is not queued at all.
+     */
+    public void addPrerequisite(Task prerequisite) {
+        prerequisites.add(prerequisite);
+    }
+
+    int getWorkItemId() {
+        return workItemId;
+    }
+
+    void setWorkItemId(int workItemId) {
+        this.workItemId = workItemId;
+    }
     //endregion
 }
@@ -8,6 +8,9 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -15,46 +18,94 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Zack Liston on 3/2/15.
  */
 public class TaskManager implements TaskFinishedInterface {
     //region constants
-    static final int MAX_NUMBER_CONCURRENT_OPERATIONS = 4;
     public static final int MAJOR_PRIORITY_USER_INITIATED = 100000000;
+
+    static final int MESSAGE_SCHEDULE_WORK = 1;
+    static final int MESSAGE_TASK_FINISHED = 2;
+    static final int MESSAGE_WAKE_UP = 3;
     //endregion
 
     //region Variables
     WorkItemDatabaseHelper workItemDatabaseHelper;
-    ExecutorService executorService;
+    int maxConcurrentOperations;
+    // Null unless the configuration asked for adaptive concurrency.
+    AdaptiveConcurrencyController concurrencyController;
+    // Null unless the configuration asked for weighted fair scheduling.
+    DeficitRoundRobin fairScheduler;
+    BackoffPolicy defaultBackoffPolicy;
+    boolean useVirtualThreads;
+    // Only used on the dispatcher thread.
+    final Random backoffRandom = new Random();
+    volatile ExecutorService executorService;
     ExecutorService backgroundService;
     Handler mainHandler;
     BroadcastReceiver broadcastReceiver;
-    Timer workTimer;
 
-    ConnectivityManager connectivityManager;
-    HashMap<String, Manager> registeredManagers;
+    // All scheduling runs on this thread, see DispatchCallback.
+    HandlerThread dispatcherThread;
+    Handler dispatchHandler;
 
-    boolean isRunning;
-    boolean isWaitingForStopCompletion;
-    int countOfCurrentlyRunningTasks;
+    ConnectivityManager connectivityManager;
+    ConcurrentHashMap<String, Manager> registeredManagers;
+    // Only task types that were registered with a limit of their own have an entry.
+    ConcurrentHashMap<String, TaskTypeConcurrency> taskTypeConcurrencies;
+    // Only task types with a rate limit have an entry.
+    ConcurrentHashMap<String, TokenBucket> rateLimiters;
+    // Rate limited task types that were out of tokens in the last claim. Only used on the dispatcher thread.
+    final HashSet<String> throttledTaskTypes = new HashSet<>();
+    // Keeps the manager and the limit of a task type changing together. Readers never take it,
+    // registeredManagers itself is only changed with putIfAbsent and remove(key, value).
+    private final Object registrationLock = new Object();
+
+    volatile boolean isRunning;
+    volatile boolean isWaitingForStopCompletion;
+
+    // True while a MESSAGE_SCHEDULE_WORK is queued and has not started running yet.
+    final AtomicBoolean isScheduleWorkPending = new AtomicBoolean(false);
+
+    // Only written on the dispatcher thread, other threads may read it.
+    volatile int countOfCurrentlyRunningTasks;
+
+    // The not before time the queued MESSAGE_WAKE_UP is for, 0 if none is queued. Only used on the dispatcher thread.
+    long scheduledWakeUpTime;
     //endregion
 
     //region Initialization
     private static TaskManager ourInstance;
     public static TaskManager getInstance(Context context) {
+        return getInstance(context, null);
+    }
+
+    /**
+     * The configuration is only used the first time the TaskManager is created, later calls return the existing instance.
+     */
+    public static TaskManager getInstance(Context context, TaskManagerConfiguration configuration) {
         if (ourInstance == null) {
             synchronized (TaskManager.class) {
                 if (ourInstance == null) {
-                    ourInstance = new TaskManager(context);
+                    ourInstance = new TaskManager(context, configuration);
                     ourInstance.workItemDatabaseHelper.restartExecutingTasks();
+                    ourInstance.workItemDatabaseHelper.removeUnreferencedPayloadFiles();
+                    ourInstance.postScheduleMoreWork();
                 }
             }
         }
@@ -62,13 +113,39 @@ public class TaskManager implements TaskFinishedInterface {
     }
 
     TaskManager(Context context) {
-        workItemDatabaseHelper = new WorkItemDatabaseHelper(context);
-        executorService = Executors.newFixedThreadPool(MAX_NUMBER_CONCURRENT_OPERATIONS);
+        this(context, null);
+    }
+
+    TaskManager(Context context, TaskManagerConfiguration configuration) {
+        if (configuration == null) {
+            configuration = new TaskManagerConfiguration();
+        }
+
+        workItemDatabaseHelper = new WorkItemDatabaseHelper(context, configuration);
+        executorService = WorkerExecutors.newWorkerExecutorService(configuration.getMaxConcurrentOperations(), configuration.isUseVirtualThreads());
+        // Without virtual threads the pool can be smaller than the configuration asked for, the limits follow the pool.
+        maxConcurrentOperations = WorkerExecutors.maximumNumberOfWorkers(executorService, configuration.getMaxConcurrentOperations());
+        useVirtualThreads = configuration.isUseVirtualThreads() && !(executorService instanceof ThreadPoolExecutor);
+        if (configuration.isUseAdaptiveConcurrency()) {
+            int initialLimit = Math.min(maxConcurrentOperations, TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS);
+            concurrencyController = new AdaptiveConcurrencyController(configuration.getMinConcurrentOperations(), maxConcurrentOperations, initialLimit);
+        }
+        defaultBackoffPolicy = configuration.getDefaultBackoffPolicy();
+        if (configuration.isUseWeightedFairScheduling()) {
+            fairScheduler = new DeficitRoundRobin();
+        }
+        WorkerExecutors.setNumberOfCoreThreads(executorService, concurrencyLimit());
         backgroundService = Executors.newCachedThreadPool();
         mainHandler = new Handler(context.getMainLooper());
         connectivityManager = (ConnectivityManager)context.getSystemService(context.CONNECTIVITY_SERVICE);
 
-        registeredManagers = new HashMap<>();
+        dispatcherThread = new HandlerThread("TaskManagerDispatcher");
+        dispatcherThread.start();
+        dispatchHandler = new Handler(dispatcherThread.getLooper(), new DispatchCallback());
+
+        registeredManagers = new ConcurrentHashMap<>();
+        taskTypeConcurrencies = new ConcurrentHashMap<>();
+        rateLimiters = new ConcurrentHashMap<>();
         isRunning = true;
         isWaitingForStopCompletion = false;
         countOfCurrentlyRunningTasks = 0;
@@ -76,9 +153,7 @@ public class TaskManager implements TaskFinishedInterface {
         broadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                synchronized (this) {
-                    scheduleMoreWork();
-                }
+                postScheduleMoreWork();
             }
         };
 
@@ -92,14 +167,7 @@ public class TaskManager implements TaskFinishedInterface {
         this.isWaitingForStopCompletion = isWaitingForStopCompletion;
 
         if (!isWaitingForStopCompletion && isRunning) {
-            backgroundService.execute(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (this) {
-                        scheduleMoreWork();
-                    }
-                }
-            });
+            postScheduleMoreWork();
         }
     }
     //endregion
@@ -110,6 +178,7 @@ public class TaskManager implements TaskFinishedInterface {
         setIsWaitingForStopCompletion(true);
 
         executorService.shutdownNow();
+        shutdownNowTaskTypeExecutorServices();
 
         if (networkCancellationBlock != null) {
             networkCancellationBlock.run();
@@ -120,10 +189,12 @@ public class TaskManager implements TaskFinishedInterface {
             public void run() {
                 try {
                     executorService.awaitTermination(30, TimeUnit.SECONDS);
+                    awaitTerminationOfTaskTypeExecutorServices();
                 } catch (InterruptedException exception) {
                     System.out.println("Error stopping TaskManager asynchronously " + exception.toString());
                 } finally {
-                    executorService = Executors.newFixedThreadPool(MAX_NUMBER_CONCURRENT_OPERATIONS);
+                    executorService = newWorkerExecutorService();
+                    restartTaskTypeExecutorServices();
                     setIsWaitingForStopCompletion(false);
                     if (completionBlock != null) {
                         mainHandler.post(completionBlock);
@@ -142,24 +213,40 @@ public class TaskManager implements TaskFinishedInterface {
         }
 
         executorService.shutdownNow();
+        shutdownNowTaskTypeExecutorServices();
         try {
             executorService.awaitTermination(30, TimeUnit.SECONDS);
+            awaitTerminationOfTaskTypeExecutorServices();
         } catch (InterruptedException exception) {
             Log.e("TaskManager", "Error stopping TaskManager asynchronously " + exception.toString());
         } finally {
-            executorService = Executors.newFixedThreadPool(MAX_NUMBER_CONCURRENT_OPERATIONS);
+            executorService = newWorkerExecutorService();
+            restartTaskTypeExecutorServices();
             setIsWaitingForStopCompletion(false);
         }
     }
 
     public synchronized void resume() {
         isRunning = true;
-        backgroundService.execute(new Runnable() {
-            @Override
-            public void run() {
-                scheduleMoreWork();
-            }
-        });
+        postScheduleMoreWork();
+    }
+
+    private void shutdownNowTaskTypeExecutorServices() {
+        for (TaskTypeConcurrency taskTypeConcurrency : taskTypeConcurrencies.values()) {
+            taskTypeConcurrency.shutdownNow();
+        }
+    }
+
+    private void awaitTerminationOfTaskTypeExecutorServices() throws InterruptedException {
+        for (TaskTypeConcurrency taskTypeConcurrency : taskTypeConcurrencies.values()) {
+            taskTypeConcurrency.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private void restartTaskTypeExecutorServices() {
+        for (TaskTypeConcurrency taskTypeConcurrency : taskTypeConcurrencies.values()) {
+            taskTypeConcurrency.restart();
+        }
     }
     //endregion
 
@@ -169,25 +256,18 @@ public class TaskManager implements TaskFinishedInterface {
             return false;
         }
 
-        boolean success;
-        synchronized (this) {
-            InternalWorkItem workItem = new InternalWorkItem();
-            workItem.setTaskType(task.getTaskType());
-            workItem.setMajorPriority(task.getMajorPriority());
-            workItem.setMinorPriority(task.getMinorPriority());
-            workItem.setJsonData(task.getJsonData());
-            workItem.setState(WorkItemState.READY);
-            workItem.setRetryCount(0);
-            workItem.setRequiresInternet(task.isRequiresInternet());
-            workItem.setTimeCreated((int) System.currentTimeMillis());
-            workItem.setMaxRetries(task.getMaxRetries());
-            workItem.setShouldHold(task.isShouldHoldAfterMaxRetries());
+        ArrayList<InternalWorkItem> prerequisites = prerequisitesOfTask(task, null);
+        if (prerequisites == null) {
+            return false;
+        }
 
-            success = workItemDatabaseHelper.addNewWorkItem(workItem);
+        InternalWorkItem workItem = workItemForTask(task);
+        workItem.setPrerequisites(prerequisites);
+        boolean success = workItemDatabaseHelper.addNewWorkItem(workItem);
 
-            if (success) {
-                scheduleMoreWork();
-            }
+        if (success) {
+            task.setWorkItemId(workItem.getId());
+            postScheduleMoreWork();
         }
 
         return success;
@@ -198,116 +278,275 @@ public class TaskManager implements TaskFinishedInterface {
             return false;
         }
 
-        boolean success = true;
-        synchronized (this) {
-            for (Task task: taskArray) {
-                if (task.getTaskType() == null || task.getTaskType().length() < 1) {
-                    success = false;
-                    continue;
-                }
+        List<Task> acceptedTasks = queueTasks(taskArray);
+        return acceptedTasks.size() == taskArray.size();
+    }
 
-                InternalWorkItem workItem = new InternalWorkItem();
-                workItem.setTaskType(task.getTaskType());
-                workItem.setMajorPriority(task.getMajorPriority());
-                workItem.setMinorPriority(task.getMinorPriority());
-                workItem.setJsonData(task.getJsonData());
-                workItem.setState(WorkItemState.READY);
-                workItem.setRetryCount(0);
-                workItem.setRequiresInternet(task.isRequiresInternet());
-                workItem.setTimeCreated((int) System.currentTimeMillis());
-                workItem.setMaxRetries(task.getMaxRetries());
-                workItem.setShouldHold(task.isShouldHoldAfterMaxRetries());
-
-                boolean individualSuccess = workItemDatabaseHelper.addNewWorkItem(workItem);
-                if (!individualSuccess) {
-                    success = individualSuccess;
+    /**
+     * Queues the valid tasks in one transaction and returns them. Tasks without a task type or with a missing prerequisite are skipped.
+     */
+    public List<Task> queueTasks(List<Task> tasks) {
+        ArrayList<Task> acceptedTasks = new ArrayList<>(tasks.size());
+        if (isWaitingForStopCompletion) {
+            return acceptedTasks;
+        }
+
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>(tasks.size());
+        IdentityHashMap<Task, InternalWorkItem> workItemsByTask = new IdentityHashMap<>();
+        for (Task task: tasks) {
+            if (task.getTaskType() == null || task.getTaskType().length() < 1) {
+                continue;
+            }
+            ArrayList<InternalWorkItem> prerequisites = prerequisitesOfTask(task, workItemsByTask);
+            if (prerequisites == null) {
+                continue;
+            }
+            InternalWorkItem workItem = workItemForTask(task);
+            workItem.setPrerequisites(prerequisites);
+            acceptedTasks.add(task);
+            workItems.add(workItem);
+            workItemsByTask.put(task, workItem);
+        }
+
+        if (workItems.size() == 0) {
+            return acceptedTasks;
+        }
+
+        boolean success = workItemDatabaseHelper.addNewWorkItems(workItems);
+
+        if (success) {
+            // Walk backwards so removing a task left out by the database does not shift the ones still to come.
+            for (int i=acceptedTasks.size()-1; i>=0; i--) {
+                if (workItems.get(i).getId() == -1) {
+                    acceptedTasks.remove(i);
+                } else {
+                    acceptedTasks.get(i).setWorkItemId(workItems.get(i).getId());
                 }
             }
-            if (success) {
-                scheduleMoreWork();
+            postScheduleMoreWork();
+        } else {
+            acceptedTasks.clear();
+        }
+
+        return acceptedTasks;
+    }
+
+    /**
+     * @return The work items the task has to wait for, or null if a prerequisite was never queued.
+     */
+    private ArrayList<InternalWorkItem> prerequisitesOfTask(Task task, Map<Task, InternalWorkItem> workItemsByTask) {
+        ArrayList<InternalWorkItem> prerequisites = new ArrayList<>(task.getPrerequisites().size());
+        for (Task prerequisite : task.getPrerequisites()) {
+            InternalWorkItem prerequisiteWorkItem = (workItemsByTask != null) ? workItemsByTask.get(prerequisite) : null;
+            if (prerequisiteWorkItem == null) {
+                if (prerequisite.getWorkItemId() <= 0) {
+                    return null;
+                }
+                prerequisiteWorkItem = new InternalWorkItem();
+                prerequisiteWorkItem.setId(prerequisite.getWorkItemId());
             }
+            prerequisites.add(prerequisiteWorkItem);
         }
+        return prerequisites;
+    }
 
-        return success;
+    private InternalWorkItem workItemForTask(Task task) {
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(task.getTaskType());
+        workItem.setMajorPriority(task.getMajorPriority());
+        workItem.setMinorPriority(task.getMinorPriority());
+        if (task.getPayload() != null) {
+            workItem.setPayload(task.getPayload(), task.getPayloadCodec());
+        } else {
+            workItem.setJsonData(task.getJsonData());
+        }
+        workItem.setState(WorkItemState.READY);
+        workItem.setRetryCount(0);
+        workItem.setRequiresInternet(task.isRequiresInternet());
+        workItem.setTimeCreated((int) System.currentTimeMillis());
+        workItem.setMaxRetries(task.getMaxRetries());
+        workItem.setShouldHold(task.isShouldHoldAfterMaxRetries());
+        workItem.setNotBefore(task.getNotBefore());
+        workItem.setBackoffPolicy((task.getBackoffPolicy() != null) ? task.getBackoffPolicy() : defaultBackoffPolicy);
+        workItem.setCoalescingKey(task.getCoalescingKey());
+        workItem.setCoalescePolicy(task.getCoalescePolicy());
+
+        return workItem;
     }
     //endregion
 
     //region Manipulating Tasks
-    public synchronized void removeTasksOfType(String taskType) {
+    // The database helper serializes its own writes, so none of these need the TaskManager lock.
+    public void removeTasksOfType(String taskType) {
         workItemDatabaseHelper.deleteWorkItemsWithTaskType(taskType);
     }
 
-    public synchronized void changePriorityOfTasksOfType(String taskType, int newMajorPriority) {
+    public void changePriorityOfTasksOfType(String taskType, int newMajorPriority) {
         workItemDatabaseHelper.changePriorityOfTaskType(taskType, newMajorPriority);
     }
 
-    public synchronized int countOfTasksWithType(String taskType) {
+    public int countOfTasksWithType(String taskType) {
         return workItemDatabaseHelper.countOfWorkItemsWithTaskType(taskType);
     }
 
-    public synchronized int countOfTasksNotHolding() {
+    public int countOfTasksNotHolding() {
         return workItemDatabaseHelper.countOfWorkItemsNotHolding();
     }
 
-    public synchronized void restartHoldingTasks() {
+    public void restartHoldingTasks() {
         workItemDatabaseHelper.restartHoldingTasks();
+        postScheduleMoreWork();
     }
     //endregion
 
     //region Manager Registration
-    public synchronized void registerManagerForTaskType(Manager manager, String taskType) throws UnsupportedOperationException {
-        Manager existingManager = registeredManagers.get(taskType);
-        if (existingManager != null) {
-            if (!existingManager.equals(manager)) {
-                throw new UnsupportedOperationException("Only one manager for each TaskType can be registered");
+    public void registerManagerForTaskType(Manager manager, String taskType) throws UnsupportedOperationException {
+        registerManagerForTaskType(manager, taskType, 0, false);
+    }
+
+    /**
+     * Below 1 maxConcurrentOperations means no limit of its own, useDedicatedPool is ignored without a limit.
+     */
+    public void registerManagerForTaskType(Manager manager, String taskType, int maxConcurrentOperations, boolean useDedicatedPool) throws UnsupportedOperationException {
+        synchronized (registrationLock) {
+            // The limit goes in first, the dispatcher may pick up the task type as soon as its manager is registered.
+            // A task type that already has a manager keeps the limit it was first registered with.
+            if (maxConcurrentOperations > 0 && !registeredManagers.containsKey(taskType)) {
+                taskTypeConcurrencies.put(taskType, new TaskTypeConcurrency(maxConcurrentOperations, useDedicatedPool, useVirtualThreads));
+            }
+
+            Manager existingManager = registeredManagers.putIfAbsent(taskType, manager);
+            if (existingManager != null) {
+                if (!existingManager.equals(manager)) {
+                    throw new UnsupportedOperationException("Only one manager for each TaskType can be registered");
+                }
+                return;
             }
         }
-        registeredManagers.put(taskType, manager);
-    }
 
-    public synchronized void removeRegisteredManagerForAllTaskTypes(Manager manager) {
-         ArrayList<String> keysToRemove = new ArrayList<>(registeredManagers.size());
+        // Work items of this type may have been waiting for a manager.
+        postScheduleMoreWork();
+    }
 
-        for (String key: registeredManagers.keySet()) {
-            Manager managerForKey = registeredManagers.get(key);
-            if (managerForKey.equals(manager)) {
-                keysToRemove.add(key);
+    public void removeRegisteredManagerForAllTaskTypes(Manager manager) {
+        synchronized (registrationLock) {
+            for (String key: registeredManagers.keySet()) {
+                if (registeredManagers.remove(key, manager)) {
+                    TaskTypeConcurrency taskTypeConcurrency = taskTypeConcurrencies.remove(key);
+                    if (taskTypeConcurrency != null) {
+                        taskTypeConcurrency.shutdown();
+                    }
+                }
             }
         }
+    }
+    //endregion
 
-        for (String keyToRemove: keysToRemove) {
-            registeredManagers.remove(keyToRemove);
+    //region Rate Limiting
+    /**
+     * Starts no more than tasksPerSecond tasks of the type per second, or burstSize at once. Replaces any earlier rate limit.
+     */
+    public void setRateLimitForTaskType(String taskType, double tasksPerSecond, int burstSize) {
+        if (tasksPerSecond <= 0) {
+            throw new IllegalArgumentException("tasksPerSecond must be greater than 0, use removeRateLimitForTaskType to stop limiting a task type");
+        }
+        rateLimiters.put(taskType, new TokenBucket(tasksPerSecond, burstSize, SystemClock.elapsedRealtime()));
+        postScheduleMoreWork();
+    }
+
+    public void removeRateLimitForTaskType(String taskType) {
+        if (rateLimiters.remove(taskType) != null) {
+            postScheduleMoreWork();
         }
     }
     //endregion
 
     //region Scheduling Work
+    /**
+     * Safe to call from any thread. Collapses into a pass that is already queued.
+     */
+    void postScheduleMoreWork() {
+        if (countOfCurrentlyRunningTasks >= concurrencyLimit() && !hasOpenDedicatedSlots()) {
+            return;
+        }
+        if (isScheduleWorkPending.compareAndSet(false, true)) {
+            dispatchHandler.sendEmptyMessage(MESSAGE_SCHEDULE_WORK);
+        }
+    }
+
+    /**
+     * Only call this on the dispatcher thread.
+     */
+    void runPendingScheduleMoreWork() {
+        isScheduleWorkPending.set(false);
+        scheduleMoreWork();
+    }
+
+    /**
+     * Only call this on the dispatcher thread.
+     */
     void scheduleMoreWork() {
-        if (workTimer != null) {
-            workTimer.cancel();
+        // Only a claim that runs in this pass may ask for a wake up when tokens come back. Without a claim the
+        // bucket would refill, queue a wake up right away, and the pass would skip the claim again.
+        throttledTaskTypes.clear();
+        int numberOfOpenSlots = concurrencyLimit() - countOfCurrentlyRunningTasks;
+        if (numberOfOpenSlots > 0 || hasOpenDedicatedSlots()) {
+            countOfCurrentlyRunningTasks += createAndQueueNextTaskWorkers(Math.max(0, numberOfOpenSlots));
         }
+        scheduleWakeUpForDeferredWork();
+    }
 
-        boolean stop = countOfCurrentlyRunningTasks >= MAX_NUMBER_CONCURRENT_OPERATIONS;
-        while (!stop) {
-            boolean success = createAndQueueNextTaskWorker();
-            if (success) {
-                countOfCurrentlyRunningTasks++;
-            } else {
-                stop = true;
-            }
+    /**
+     * Only call this on the dispatcher thread. Queues a MESSAGE_WAKE_UP for the next deferred work item or token, whichever is first.
+     */
+    void scheduleWakeUpForDeferredWork() {
+        long wakeUpTime = workItemDatabaseHelper.timeOfNextDeferredWorkItem();
+        long timeOfNextToken = timeOfNextTokenForThrottledWork();
+        if (timeOfNextToken > 0 && (wakeUpTime <= 0 || timeOfNextToken < wakeUpTime)) {
+            wakeUpTime = timeOfNextToken;
+        }
+        if (wakeUpTime <= 0 || (scheduledWakeUpTime > 0 && scheduledWakeUpTime <= wakeUpTime)) {
+            return;
+        }
+
+        dispatchHandler.removeMessages(MESSAGE_WAKE_UP);
+        dispatchHandler.sendEmptyMessageDelayed(MESSAGE_WAKE_UP, Math.max(0, wakeUpTime - System.currentTimeMillis()));
+        scheduledWakeUpTime = wakeUpTime;
+    }
+
+    /**
+     * @return The System.currentTimeMillis() time the first throttled task type with READY work items gets a token, or 0 if none is waiting.
+     */
+    private long timeOfNextTokenForThrottledWork() {
+        if (throttledTaskTypes.isEmpty()) {
+            return 0;
+        }
 
-            if (countOfCurrentlyRunningTasks >= MAX_NUMBER_CONCURRENT_OPERATIONS) {
-                stop = true;
+        long now = SystemClock.elapsedRealtime();
+        long millisUntilNextToken = Long.MAX_VALUE;
+        for (String taskType : workItemDatabaseHelper.countOfReadyWorkItemsByTaskType(throttledTaskTypes, true).keySet()) {
+            TokenBucket rateLimiter = rateLimiters.get(taskType);
+            if (rateLimiter != null) {
+                millisUntilNextToken = Math.min(millisUntilNextToken, rateLimiter.millisUntilNextToken(now));
             }
         }
+        return (millisUntilNextToken == Long.MAX_VALUE) ? 0 : System.currentTimeMillis() + millisUntilNextToken;
+    }
 
-        workTimer = new Timer();
-        workTimer.schedule(new ScheduleWorkFromTimer(), 5000);
+    /**
+     * Only call this on the dispatcher thread.
+     */
+    void handleWakeUp() {
+        scheduledWakeUpTime = 0;
+        scheduleMoreWork();
     }
 
-    boolean createAndQueueNextTaskWorker() {
+    /**
+     * @return The number of workers that were queued on the shared slots.
+     */
+    int createAndQueueNextTaskWorkers(int maxNumberOfWorkers) {
         if (!isRunning || isWaitingForStopCompletion) {
-            return false;
+            return 0;
         }
 
         boolean isConnected = false;
@@ -320,70 +559,325 @@ public class TaskManager implements TaskFinishedInterface {
             System.out.println("There is no Connectivity manager in TaskManager. Only executing tasks that do not require Internet.");
         }
 
-        Set taskTypes = registeredManagers.keySet();
-        InternalWorkItem workItem = workItemDatabaseHelper.getNextWorkItemForTaskTypes(taskTypes, isConnected);
+        ArrayList<InternalWorkItem> workItems = claimNextWorkItems(isConnected, maxNumberOfWorkers);
 
-        if (workItem == null) {
-            return false;
+        int numberOfQueuedWorkers = 0;
+        for (InternalWorkItem workItem : workItems) {
+            Manager managerForTaskType = registeredManagers.get(workItem.getTaskType());
+            if (managerForTaskType == null) {
+                System.out.println("There is no registered manager for task type " + workItem.getTaskType() + " cannot execute.");
+                releaseClaimedWorkItem(workItem);
+                continue;
+            }
+
+            TaskTypeConcurrency taskTypeConcurrency = taskTypeConcurrencies.get(workItem.getTaskType());
+            ExecutorService dedicatedExecutorService = (taskTypeConcurrency != null) ? taskTypeConcurrency.dedicatedExecutorService() : null;
+
+            ArrayList<InternalWorkItem> batch = new ArrayList<>(1);
+            batch.add(workItem);
+            TaskWorker worker;
+            if (managerForTaskType.maxBatchSize() > 1) {
+                claimMoreWorkItemsForBatch(batch, managerForTaskType.maxBatchSize(), isConnected);
+                for (InternalWorkItem batchWorkItem : batch) {
+                    workItemDatabaseHelper.loadPayloadOfWorkItem(batchWorkItem);
+                }
+                BatchTaskWorker batchWorker = managerForTaskType.batchTaskWorkerForWorkItems(batch);
+                if (batchWorker == null) {
+                    System.out.println("The manager for task type " + workItem.getTaskType() + " did not return a batch worker, cannot execute.");
+                    releaseClaimedWorkItems(batch);
+                    continue;
+                }
+                batchWorker.setupWithWorkItems(batch);
+                worker = batchWorker;
+            } else {
+                workItemDatabaseHelper.loadPayloadOfWorkItem(workItem);
+                worker = managerForTaskType.taskWorkerForWorkItem(workItem);
+            }
+            worker.setTaskFinishedDelegate(this);
+            worker.setTaskTypeConcurrency(taskTypeConcurrency);
+            worker.setTimeStarted(SystemClock.elapsedRealtime());
+
+            try {
+                if (dedicatedExecutorService != null) {
+                    dedicatedExecutorService.execute(worker);
+                } else {
+                    executorService.execute(worker);
+                }
+            } catch (RejectedExecutionException exception) {
+                // TaskManager was stopped, or the task type unregistered, after the checks above.
+                releaseClaimedWorkItems(batch);
+                continue;
+            }
+
+            if (taskTypeConcurrency != null) {
+                taskTypeConcurrency.countOfCurrentlyRunningTasks++;
+            }
+            if (dedicatedExecutorService == null) {
+                numberOfQueuedWorkers++;
+            }
         }
 
-        Manager managerForTaskType = registeredManagers.get(workItem.getTaskType());
-        if (managerForTaskType == null) {
-            System.out.println("There is no registered manager for task type " + workItem.getTaskType() + " cannot execute.");
-            return false;
+        return numberOfQueuedWorkers;
+    }
+
+    /**
+     * Fills up the batch with work items of its task type, each of them still takes a token of a rate limited task type.
+     */
+    private void claimMoreWorkItemsForBatch(ArrayList<InternalWorkItem> batch, int maxBatchSize, boolean isConnected) {
+        String taskType = batch.get(0).getTaskType();
+        long now = SystemClock.elapsedRealtime();
+        TokenBucket rateLimiter = rateLimiters.get(taskType);
+
+        int limit = maxBatchSize - batch.size();
+        if (rateLimiter != null) {
+            limit = Math.min(limit, rateLimiter.availableTokens(now));
+        }
+        if (limit < 1) {
+            return;
+        }
+
+        HashSet<String> taskTypes = new HashSet<>();
+        taskTypes.add(taskType);
+        ArrayList<InternalWorkItem> workItems = workItemDatabaseHelper.claimNextWorkItems(taskTypes, isConnected, limit);
+        if (rateLimiter != null) {
+            rateLimiter.consume(workItems.size(), now);
+        }
+        batch.addAll(workItems);
+    }
+
+    private void releaseClaimedWorkItems(List<InternalWorkItem> workItems) {
+        for (InternalWorkItem workItem : workItems) {
+            releaseClaimedWorkItem(workItem);
+        }
+    }
+
+    // The claim took a token for the work item, it goes back since no worker runs it.
+    private void releaseClaimedWorkItem(InternalWorkItem workItem) {
+        workItemDatabaseHelper.releaseClaimedWorkItem(workItem);
+        TokenBucket rateLimiter = rateLimiters.get(workItem.getTaskType());
+        if (rateLimiter != null) {
+            rateLimiter.refund(1, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Claims for the shared slots and for every dedicated pool with room. Task types at their own limit or out of tokens are left out.
+     */
+    private ArrayList<InternalWorkItem> claimNextWorkItems(boolean isConnected, int maxNumberOfSharedWorkers) {
+        Set<String> taskTypes = registeredManagers.keySet();
+        if (taskTypeConcurrencies.isEmpty() && fairScheduler == null && rateLimiters.isEmpty()) {
+            return workItemDatabaseHelper.claimNextWorkItems(taskTypes, isConnected, maxNumberOfSharedWorkers);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        HashSet<String> sharedTaskTypes = new HashSet<>();
+        HashSet<String> dedicatedTaskTypes = new HashSet<>();
+        HashMap<String, Integer> limitByTaskType = new HashMap<>();
+        int numberOfDedicatedSlots = 0;
+        for (String taskType : taskTypes) {
+            TaskTypeConcurrency taskTypeConcurrency = taskTypeConcurrencies.get(taskType);
+            TokenBucket rateLimiter = rateLimiters.get(taskType);
+            if (taskTypeConcurrency == null && rateLimiter == null) {
+                sharedTaskTypes.add(taskType);
+                continue;
+            }
+
+            int limit = (taskTypeConcurrency != null) ? taskTypeConcurrency.numberOfOpenSlots() : Integer.MAX_VALUE;
+            if (rateLimiter != null) {
+                int availableTokens = rateLimiter.availableTokens(now);
+                if (availableTokens < 1) {
+                    throttledTaskTypes.add(taskType);
+                }
+                limit = Math.min(limit, availableTokens);
+            }
+            if (limit < 1) {
+                continue;
+            }
+
+            limitByTaskType.put(taskType, limit);
+            if (taskTypeConcurrency != null && taskTypeConcurrency.useDedicatedPool) {
+                dedicatedTaskTypes.add(taskType);
+                numberOfDedicatedSlots += limit;
+            } else {
+                sharedTaskTypes.add(taskType);
+            }
+        }
+
+        ArrayList<InternalWorkItem> workItems;
+        if (fairScheduler != null) {
+            workItems = claimNextWorkItemsFairly(sharedTaskTypes, limitByTaskType, isConnected, maxNumberOfSharedWorkers);
+        } else {
+            workItems = workItemDatabaseHelper.claimNextWorkItems(sharedTaskTypes, limitByTaskType, isConnected, maxNumberOfSharedWorkers);
+        }
+        if (numberOfDedicatedSlots > 0) {
+            workItems.addAll(workItemDatabaseHelper.claimNextWorkItems(dedicatedTaskTypes, limitByTaskType, isConnected, numberOfDedicatedSlots));
+        }
+
+        for (InternalWorkItem workItem : workItems) {
+            TokenBucket rateLimiter = rateLimiters.get(workItem.getTaskType());
+            if (rateLimiter != null) {
+                rateLimiter.consume(1, now);
+            }
+        }
+        return workItems;
+    }
+
+    /**
+     * Lets the fair scheduler split the shared slots between the task types that have work waiting, then claims exactly that many of each.
+     */
+    private ArrayList<InternalWorkItem> claimNextWorkItemsFairly(Set<String> taskTypes, HashMap<String, Integer> limitByTaskType, boolean isConnected, int maxNumberOfWorkers) {
+        if (maxNumberOfWorkers < 1) {
+            return new ArrayList<>();
+        }
+
+        HashMap<String, Integer> backlogByTaskType = workItemDatabaseHelper.countOfReadyWorkItemsByTaskType(taskTypes, isConnected);
+        HashMap<String, Integer> weightByTaskType = new HashMap<>();
+        for (String taskType : backlogByTaskType.keySet()) {
+            Integer limit = limitByTaskType.get(taskType);
+            if (limit != null && limit < backlogByTaskType.get(taskType)) {
+                backlogByTaskType.put(taskType, limit);
+            }
+            Manager manager = registeredManagers.get(taskType);
+            if (manager != null) {
+                weightByTaskType.put(taskType, manager.schedulingWeight());
+            }
         }
 
-        workItem.setState(WorkItemState.EXECUTING);
-        workItemDatabaseHelper.updateWorkItem(workItem);
+        HashMap<String, Integer> allocationByTaskType = fairScheduler.allocate(backlogByTaskType, weightByTaskType, maxNumberOfWorkers);
+        int numberOfAllocatedWorkers = 0;
+        for (int allocation : allocationByTaskType.values()) {
+            numberOfAllocatedWorkers += allocation;
+        }
 
-        TaskWorker worker = managerForTaskType.taskWorkerForWorkItem(workItem);
-        worker.setTaskFinishedDelegate(this);
+        ArrayList<InternalWorkItem> workItems = workItemDatabaseHelper.claimNextWorkItems(allocationByTaskType.keySet(), allocationByTaskType, isConnected, numberOfAllocatedWorkers);
 
-        executorService.execute(worker);
+        // A stale index entry can leave a task type short, it keeps the credit for next time.
+        for (InternalWorkItem workItem : workItems) {
+            Integer allocation = allocationByTaskType.get(workItem.getTaskType());
+            allocationByTaskType.put(workItem.getTaskType(), allocation - 1);
+        }
+        for (String taskType : allocationByTaskType.keySet()) {
+            fairScheduler.refund(taskType, allocationByTaskType.get(taskType));
+        }
+        return workItems;
+    }
 
-        return true;
+    private boolean hasOpenDedicatedSlots() {
+        for (TaskTypeConcurrency taskTypeConcurrency : taskTypeConcurrencies.values()) {
+            if (taskTypeConcurrency.useDedicatedPool && taskTypeConcurrency.numberOfOpenSlots() > 0) {
+                return true;
+            }
+        }
+        return false;
     }
     //endregion
 
     //region TaskFinished Interface
+    /**
+     * Called on the worker's thread, hands the result to the dispatcher thread and returns right away.
+     */
     public void taskWorkerFinishedSuccessfully(TaskWorker taskWorker, boolean success) {
-        synchronized (this) {
+        dispatchHandler.sendMessage(dispatchHandler.obtainMessage(MESSAGE_TASK_FINISHED, (success) ? 1 : 0, 0, taskWorker));
+    }
+
+    /**
+     * Only call this on the dispatcher thread.
+     */
+    void handleTaskWorkerFinished(TaskWorker taskWorker, boolean success) {
+        TaskTypeConcurrency taskTypeConcurrency = taskWorker.taskTypeConcurrency();
+        if (taskTypeConcurrency != null) {
+            taskTypeConcurrency.countOfCurrentlyRunningTasks--;
+        }
+        if (taskTypeConcurrency == null || !taskTypeConcurrency.useDedicatedPool) {
+            if (concurrencyController != null) {
+                long now = SystemClock.elapsedRealtime();
+                concurrencyController.onWorkerFinished(now - taskWorker.timeStarted(), now, countOfCurrentlyRunningTasks);
+                WorkerExecutors.setNumberOfCoreThreads(executorService, concurrencyController.getLimit());
+            }
             countOfCurrentlyRunningTasks--;
-            if (success) {
-                workItemDatabaseHelper.deleteWorkItem(taskWorker.workItem());
-            } else {
-                InternalWorkItem workItem = taskWorker.workItem();
-                int oldRetryCount = workItem.getRetryCount();
-                workItem.setRetryCount(oldRetryCount+1);
-
-                if (workItem.getRetryCount() >= workItem.getMaxRetries()) {
-                    Manager managerForTask = registeredManagers.get(workItem.getTaskType());
-                    if (managerForTask != null) {
-                        managerForTask.workItemDidFail(workItem);
-                    }
+        }
 
-                    if (workItem.isShouldHold()) {
-                        workItem.setState(WorkItemState.HOLDING);
-                        workItemDatabaseHelper.updateWorkItem(workItem);
-                    } else {
-                        workItemDatabaseHelper.deleteWorkItem(workItem);
-                    }
+        if (taskWorker instanceof BatchTaskWorker) {
+            BatchTaskWorker batchTaskWorker = (BatchTaskWorker) taskWorker;
+            for (InternalWorkItem workItem : batchTaskWorker.workItems()) {
+                finishWorkItem(workItem, batchTaskWorker.wasWorkItemSuccessful(workItem));
+            }
+        } else {
+            finishWorkItem(taskWorker.workItem(), success);
+        }
+        scheduleMoreWork();
+    }
+
+    private void finishWorkItem(InternalWorkItem workItem, boolean success) {
+        if (success) {
+            // Also moves any work items that were waiting on it to READY, scheduleMoreWork picks them up.
+            workItemDatabaseHelper.completeWorkItem(workItem);
+        } else {
+            int oldRetryCount = workItem.getRetryCount();
+            workItem.setRetryCount(oldRetryCount+1);
 
+            if (workItem.getRetryCount() >= workItem.getMaxRetries()) {
+                Manager managerForTask = registeredManagers.get(workItem.getTaskType());
+                if (managerForTask != null) {
+                    managerForTask.workItemDidFail(workItem);
+                }
+
+                if (workItem.isShouldHold()) {
+                    workItem.setState(WorkItemState.HOLDING);
+                    workItemDatabaseHelper.holdFailedWorkItem(workItem);
                 } else {
-                    workItem.setState(WorkItemState.READY);
-                    workItemDatabaseHelper.updateWorkItem(workItem);
+                    workItemDatabaseHelper.deleteWorkItem(workItem);
+                }
+
+            } else {
+                workItem.setState(WorkItemState.READY);
+                long delay = workItem.getBackoffPolicy().delayBeforeRetry(workItem.getRetryCount(), backoffRandom);
+                if (delay > 0) {
+                    // scheduleMoreWork queues the wake up for when the backoff is over.
+                    workItem.setNotBefore(System.currentTimeMillis() + delay);
                 }
+                workItemDatabaseHelper.retryFailedWorkItem(workItem);
             }
-            scheduleMoreWork();
         }
     }
     //endregion
 
-    //region Timer Helpers
-    class ScheduleWorkFromTimer extends TimerTask {
-        public void run() {
-            synchronized (ourInstance) {
-                scheduleMoreWork();
+    //region Concurrency
+    /**
+     * How many workers may run right now. Fixed unless adaptive concurrency is on.
+     */
+    int concurrencyLimit() {
+        return (concurrencyController != null) ? concurrencyController.getLimit() : maxConcurrentOperations;
+    }
+
+    // The pool is sized for the adaptive maximum but only keeps concurrencyLimit core threads.
+    // With virtual threads there is no pool at all, concurrencyLimit alone bounds the workers in flight.
+    private ExecutorService newWorkerExecutorService() {
+        ExecutorService workerExecutorService = WorkerExecutors.newWorkerExecutorService(maxConcurrentOperations, useVirtualThreads);
+        WorkerExecutors.setNumberOfCoreThreads(workerExecutorService, concurrencyLimit());
+        return workerExecutorService;
+    }
+    //endregion
+
+    //region Dispatcher
+    /**
+     * Runs every scheduling event one at a time on the dispatcher thread.
+     */
+    private class DispatchCallback implements Handler.Callback {
+        @Override
+        public boolean handleMessage(Message message) {
+            switch (message.what) {
+                case MESSAGE_SCHEDULE_WORK:
+                    runPendingScheduleMoreWork();
+                    return true;
+                case MESSAGE_TASK_FINISHED:
+                    handleTaskWorkerFinished((TaskWorker) message.obj, message.arg1 == 1);
+                    return true;
+                case MESSAGE_WAKE_UP:
+                    handleWakeUp();
+                    return true;
+                default:
+                    return false;
             }
         }
     }
@@ -0,0 +1,139 @@
+package com.zackliston.taskmanager;
+
+/**
+ * Options used when the TaskManager is first created. Changing a configuration after it
+ * has been passed to TaskManager.getInstance has no effect.
+ */
+public class TaskManagerConfiguration
+{
+    public static final int DEFAULT_PAYLOAD_SPILL_THRESHOLD = 128 * 1024;
+    public static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 4;
+
+    //region Variables
+    private boolean useWriteAheadLogging;
+    private int payloadSpillThreshold;
+    private int maxConcurrentOperations;
+    private boolean useAdaptiveConcurrency;
+    private int minConcurrentOperations;
+    private boolean useWeightedFairScheduling;
+    private int priorityAgingPerMinute;
+    private BackoffPolicy defaultBackoffPolicy;
+    private boolean useVirtualThreads;
+    //endregion
+
+    //region Initializer
+    public TaskManagerConfiguration() {
+        useWriteAheadLogging = false;
+        payloadSpillThreshold = DEFAULT_PAYLOAD_SPILL_THRESHOLD;
+        maxConcurrentOperations = DEFAULT_MAX_CONCURRENT_OPERATIONS;
+        useAdaptiveConcurrency = false;
+        minConcurrentOperations = 1;
+        useWeightedFairScheduling = false;
+        priorityAgingPerMinute = 0;
+        defaultBackoffPolicy = BackoffPolicy.none();
+        useVirtualThreads = false;
+    }
+    //endregion
+
+    //region Getters/Setters
+    public boolean isUseWriteAheadLogging() {
+        return useWriteAheadLogging;
+    }
+
+    /**
+     * Lets reads such as the task counts run without waiting behind dispatch. Ignored below API 11.
+     */
+    public void setUseWriteAheadLogging(boolean useWriteAheadLogging) {
+        this.useWriteAheadLogging = useWriteAheadLogging;
+    }
+
+    public int getPayloadSpillThreshold() {
+        return payloadSpillThreshold;
+    }
+
+    /**
+     * Payloads larger than this many bytes are kept in a file instead of the database, zero or less for never.
+     */
+    public void setPayloadSpillThreshold(int payloadSpillThreshold) {
+        this.payloadSpillThreshold = payloadSpillThreshold;
+    }
+
+    public int getMaxConcurrentOperations() {
+        return maxConcurrentOperations;
+    }
+
+    /**
+     * How many tasks may run at the same time, or with adaptive concurrency the most the limit can grow to.
+     */
+    public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+        this.maxConcurrentOperations = Math.max(1, maxConcurrentOperations);
+    }
+
+    public boolean isUseAdaptiveConcurrency() {
+        return useAdaptiveConcurrency;
+    }
+
+    /**
+     * Grows the concurrency limit while tasks keep their latency and shrinks it when they slow down.
+     */
+    public void setUseAdaptiveConcurrency(boolean useAdaptiveConcurrency) {
+        this.useAdaptiveConcurrency = useAdaptiveConcurrency;
+    }
+
+    public int getMinConcurrentOperations() {
+        return minConcurrentOperations;
+    }
+
+    /**
+     * The lowest the adaptive concurrency limit can go. Ignored without adaptive concurrency.
+     */
+    public void setMinConcurrentOperations(int minConcurrentOperations) {
+        this.minConcurrentOperations = Math.max(1, minConcurrentOperations);
+    }
+
+    public boolean isUseWeightedFairScheduling() {
+        return useWeightedFairScheduling;
+    }
+
+    /**
+     * Shares the workers between task types by the weight of their Manager instead of strictly by priority.
+     */
+    public void setUseWeightedFairScheduling(boolean useWeightedFairScheduling) {
+        this.useWeightedFairScheduling = useWeightedFairScheduling;
+    }
+
+    public int getPriorityAgingPerMinute() {
+        return priorityAgingPerMinute;
+    }
+
+    /**
+     * How much a waiting work item's major priority rises for every minute since it was created, 0 turns aging off.
+     */
+    public void setPriorityAgingPerMinute(int priorityAgingPerMinute) {
+        this.priorityAgingPerMinute = Math.max(0, priorityAgingPerMinute);
+    }
+
+    public BackoffPolicy getDefaultBackoffPolicy() {
+        return defaultBackoffPolicy;
+    }
+
+    /**
+     * The backoff policy of tasks that do not set their own. Defaults to BackoffPolicy.none(), retrying right away.
+     */
+    public void setDefaultBackoffPolicy(BackoffPolicy defaultBackoffPolicy) {
+        this.defaultBackoffPolicy = (defaultBackoffPolicy != null) ? defaultBackoffPolicy : BackoffPolicy.none();
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Runs every worker on its own virtual thread on Java 21 or later. Elsewhere, such as on Android,
+     * maxConcurrentOperations is capped at DEFAULT_MAX_CONCURRENT_OPERATIONS.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+    //endregion
+}
@@ -0,0 +1,74 @@
+package com.zackliston.taskmanager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The concurrency limit a task type was registered with, and its own worker pool if it asked for one.
+ */
+class TaskTypeConcurrency
+{
+    //region Variables
+    final int maxConcurrentOperations;
+    final boolean useDedicatedPool;
+    private final boolean useVirtualThreads;
+    private volatile ExecutorService dedicatedExecutorService;
+
+    // Only written on the dispatcher thread, other threads may read it.
+    volatile int countOfCurrentlyRunningTasks;
+    //endregion
+
+    //region Initialize
+    TaskTypeConcurrency(int maxConcurrentOperations, boolean useDedicatedPool, boolean useVirtualThreads) {
+        this.maxConcurrentOperations = Math.max(1, maxConcurrentOperations);
+        this.useDedicatedPool = useDedicatedPool;
+        this.useVirtualThreads = useVirtualThreads;
+        if (useDedicatedPool) {
+            dedicatedExecutorService = WorkerExecutors.newWorkerExecutorService(this.maxConcurrentOperations, useVirtualThreads);
+        }
+    }
+    //endregion
+
+    //region Protected Methods
+    int numberOfOpenSlots() {
+        return maxConcurrentOperations - countOfCurrentlyRunningTasks;
+    }
+
+    /**
+     * @return The pool this task type runs on, or null if it shares the TaskManager's pool.
+     */
+    ExecutorService dedicatedExecutorService() {
+        return dedicatedExecutorService;
+    }
+
+    void shutdownNow() {
+        if (dedicatedExecutorService != null) {
+            dedicatedExecutorService.shutdownNow();
+        }
+    }
+
+    void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (dedicatedExecutorService != null) {
+            dedicatedExecutorService.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Replaces a pool that was shut down by a stop.
+     */
+    void restart() {
+        if (useDedicatedPool) {
+            dedicatedExecutorService = WorkerExecutors.newWorkerExecutorService(maxConcurrentOperations, useVirtualThreads);
+        }
+    }
+
+    /**
+     * Lets the running tasks finish and then releases the threads, used once the task type is unregistered.
+     */
+    void shutdown() {
+        if (dedicatedExecutorService != null) {
+            dedicatedExecutorService.shutdown();
+        }
+    }
+    //endregion
+}
@@ -11,6 +11,8 @@ public abstract class TaskWorker implements Runnable
     private boolean taskFailed;
     private boolean isFinalAttempt;
     private boolean hasCalledTaskFinished;
+    private long timeStarted;
+    private TaskTypeConcurrency taskTypeConcurrency;
     //endregion
 
     //region Getters/Setters
@@ -50,6 +52,22 @@ public abstract class TaskWorker implements Runnable
         return Thread.currentThread().isInterrupted();
     }
 
+    long timeStarted() {
+        return timeStarted;
+    }
+
+    void setTimeStarted(long timeStarted) {
+        this.timeStarted = timeStarted;
+    }
+
+    TaskTypeConcurrency taskTypeConcurrency() {
+        return taskTypeConcurrency;
+    }
+
+    void setTaskTypeConcurrency(TaskTypeConcurrency taskTypeConcurrency) {
+        this.taskTypeConcurrency = taskTypeConcurrency;
+    }
+
     //endregion
 
     public void setupWithWorkItem(InternalWorkItem workItem) {
@@ -0,0 +1,70 @@
+package com.zackliston.taskmanager;
+
+/**
+ * A token bucket that refills at a steady rate up to its burst size, each started task takes one token.
+ * Times are on a monotonic clock such as SystemClock.elapsedRealtime().
+ */
+class TokenBucket
+{
+    //region Variables
+    private final double tokensPerMillisecond;
+    private final double burstSize;
+    private double tokens;
+    private long lastRefillTime;
+    //endregion
+
+    //region Initialize
+    TokenBucket(double tokensPerSecond, int burstSize, long now) {
+        this.tokensPerMillisecond = tokensPerSecond / 1000.0;
+        this.burstSize = Math.max(1, burstSize);
+        this.tokens = this.burstSize;
+        this.lastRefillTime = now;
+    }
+    //endregion
+
+    //region Protected Methods
+    /**
+     * @return How many whole tokens can be taken right now.
+     */
+    synchronized int availableTokens(long now) {
+        refill(now);
+        return (int) tokens;
+    }
+
+    synchronized void consume(int count, long now) {
+        refill(now);
+        tokens -= count;
+    }
+
+    /**
+     * Gives back tokens taken for tasks that were never started.
+     */
+    synchronized void refund(int count, long now) {
+        refill(now);
+        tokens = Math.min(burstSize, tokens + count);
+    }
+
+    /**
+     * @return How long until at least one whole token is available, 0 if one already is.
+     */
+    synchronized long millisUntilNextToken(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        if (tokensPerMillisecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerMillisecond);
+    }
+    //endregion
+
+    //region Helpers
+    private void refill(long now) {
+        if (now > lastRefillTime) {
+            tokens = Math.min(burstSize, tokens + (now - lastRefillTime) * tokensPerMillisecond);
+            lastRefillTime = now;
+        }
+    }
+    //endregion
+}
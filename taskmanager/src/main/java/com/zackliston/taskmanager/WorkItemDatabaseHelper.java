@@ -2,16 +2,29 @@ package com.zackliston.taskmanager;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.content.Context;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.zackliston.taskmanager.InternalWorkItem;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
 
@@ -22,13 +35,28 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
 {
 
     //region Constants
-    private static final int    DATABASE_VERSION        = 1;
+    private static final int    DATABASE_VERSION        = 12;
     private static final String DATABASE_NAME           = "WorkItemDB";
     private static final String WORK_ITEM_TABLE_NAME    = "work_item";
+    private static final String PAYLOAD_TABLE_NAME      = "work_item_payload";
+    private static final String DISPATCH_INDEX_NAME     = "work_item_dispatch_index";
+    private static final String NOT_BEFORE_INDEX_NAME   = "work_item_not_before_index";
+    private static final String COALESCING_INDEX_NAME   = "work_item_coalescing_index";
+    private static final String COUNT_TABLE_NAME        = "work_item_count";
+    private static final String DEPENDENCY_TABLE_NAME   = "work_item_dependency";
+    private static final String DEPENDENCY_INDEX_NAME   = "work_item_dependency_index";
+    private static final String REMOVED_TABLE_NAME      = "work_item_removed";
+    private static final String COUNT_COLUMN            = "count";
     private static final String DEFAULT_ID_COLUMN       = "id";
+    private static final String WORK_ITEM_ID_COLUMN     = "work_item_id";
     private static final String TASK_TYPE_COLUMN        = "task_type";
     private static final String STATE_COLUMN            = "state";
     private static final String DATA_COLUMN             = "data";
+    private static final String PAYLOAD_COLUMN          = "payload";
+    private static final String PAYLOAD_CODEC_COLUMN    = "payload_codec";
+    private static final String PAYLOAD_FILE_COLUMN     = "payload_file";
+    private static final String PAYLOAD_FILE_INDEX_NAME = "work_item_payload_file_index";
+    private static final String PAYLOAD_DIRECTORY_NAME  = "work_item_payloads";
     private static final String MAJOR_PRIORITY_COLUMN   = "major_priority";
     private static final String MINOR_PRIORITY_COLUMN   = "minor_priority";
     private static final String RETRY_COUNT_COLUMN      = "retry_count";
@@ -36,15 +64,92 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
     private static final String REQUIRES_INTERNET_COLUMN = "requires_internet";
     private static final String MAX_RETRIES_COLUMN      = "max_retries";
     private static final String SHOULD_HOLD_COLUMN      = "should_hold";
+    private static final String NOT_BEFORE_COLUMN       = "not_before";
+    private static final String BACKOFF_TYPE_COLUMN     = "backoff_type";
+    private static final String BACKOFF_DELAY_COLUMN    = "backoff_delay";
+    private static final String BACKOFF_MAX_DELAY_COLUMN = "backoff_max_delay";
+    private static final String DEPENDS_ON_ID_COLUMN    = "depends_on_id";
+    private static final String COALESCING_KEY_COLUMN   = "coalescing_key";
+    // Stays well below SQLite's default limit of 999 bound parameters.
+    private static final int    MAX_IDS_PER_STATEMENT   = 500;
 
-    private static final String[] DEFAULT_COLUMNS = {DEFAULT_ID_COLUMN, TASK_TYPE_COLUMN, STATE_COLUMN, DATA_COLUMN, MAJOR_PRIORITY_COLUMN, MINOR_PRIORITY_COLUMN, RETRY_COUNT_COLUMN, TIME_CREATED_COLUMN, REQUIRES_INTERNET_COLUMN, MAX_RETRIES_COLUMN, SHOULD_HOLD_COLUMN};
+    private static final String[] DEFAULT_COLUMNS = {DEFAULT_ID_COLUMN, TASK_TYPE_COLUMN, STATE_COLUMN, MAJOR_PRIORITY_COLUMN, MINOR_PRIORITY_COLUMN, RETRY_COUNT_COLUMN, TIME_CREATED_COLUMN, REQUIRES_INTERNET_COLUMN, MAX_RETRIES_COLUMN, SHOULD_HOLD_COLUMN, NOT_BEFORE_COLUMN, BACKOFF_TYPE_COLUMN, BACKOFF_DELAY_COLUMN, BACKOFF_MAX_DELAY_COLUMN, COALESCING_KEY_COLUMN};
+    private static final String[] PAYLOAD_COLUMNS = {PAYLOAD_COLUMN, PAYLOAD_CODEC_COLUMN, PAYLOAD_FILE_COLUMN};
+
+    private static final String INSERT_WORK_ITEM_STATEMENT = "INSERT INTO " + WORK_ITEM_TABLE_NAME + " ( " +
+            TASK_TYPE_COLUMN + ", " +
+            STATE_COLUMN + ", " +
+            MAJOR_PRIORITY_COLUMN + ", " +
+            MINOR_PRIORITY_COLUMN + ", " +
+            RETRY_COUNT_COLUMN + ", " +
+            TIME_CREATED_COLUMN + ", " +
+            REQUIRES_INTERNET_COLUMN + ", " +
+            MAX_RETRIES_COLUMN + ", " +
+            SHOULD_HOLD_COLUMN + ", " +
+            NOT_BEFORE_COLUMN + ", " +
+            BACKOFF_TYPE_COLUMN + ", " +
+            BACKOFF_DELAY_COLUMN + ", " +
+            BACKOFF_MAX_DELAY_COLUMN + ", " +
+            COALESCING_KEY_COLUMN + " ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_PAYLOAD_STATEMENT = "INSERT OR REPLACE INTO " + PAYLOAD_TABLE_NAME + " ( " +
+            WORK_ITEM_ID_COLUMN + ", " +
+            PAYLOAD_COLUMN + ", " +
+            PAYLOAD_CODEC_COLUMN + ", " +
+            PAYLOAD_FILE_COLUMN + " ) VALUES (?, ?, ?, ?)";
+
+    private static final String CHANGE_STATE_STATEMENT = "UPDATE " + WORK_ITEM_TABLE_NAME + " SET " + STATE_COLUMN + " = ? " +
+            "WHERE " + DEFAULT_ID_COLUMN + " = ? AND " + STATE_COLUMN + " = ?";
+
+    private static final String FAIL_WORK_ITEM_STATEMENT = "UPDATE " + WORK_ITEM_TABLE_NAME + " SET " + STATE_COLUMN + " = ?, " +
+            RETRY_COUNT_COLUMN + " = " + RETRY_COUNT_COLUMN + " + 1 " +
+            "WHERE " + DEFAULT_ID_COLUMN + " = ? AND " + STATE_COLUMN + " = ?";
+
+    private static final String RETRY_WORK_ITEM_STATEMENT = "UPDATE " + WORK_ITEM_TABLE_NAME + " SET " + STATE_COLUMN + " = ?, " +
+            RETRY_COUNT_COLUMN + " = " + RETRY_COUNT_COLUMN + " + 1, " +
+            NOT_BEFORE_COLUMN + " = ? " +
+            "WHERE " + DEFAULT_ID_COLUMN + " = ? AND " + STATE_COLUMN + " = ?";
+
+    // Only raises the priority, a lower one leaves the row alone.
+    private static final String RAISE_PRIORITY_STATEMENT = "UPDATE " + WORK_ITEM_TABLE_NAME + " SET " + MAJOR_PRIORITY_COLUMN + " = ?, " + MINOR_PRIORITY_COLUMN + " = ? " +
+            "WHERE " + DEFAULT_ID_COLUMN + " = ? AND (" + MAJOR_PRIORITY_COLUMN + " < ? OR (" + MAJOR_PRIORITY_COLUMN + " = ? AND " + MINOR_PRIORITY_COLUMN + " < ?))";
+
+    // Only adds the edge while the prerequisite is still in the table. A prerequisite that is gone has either completed
+    // or is in REMOVED_TABLE_NAME, which hasRemovedPrerequisite checks first.
+    private static final String INSERT_DEPENDENCY_STATEMENT = "INSERT OR IGNORE INTO " + DEPENDENCY_TABLE_NAME + " ( " +
+            WORK_ITEM_ID_COLUMN + ", " +
+            DEPENDS_ON_ID_COLUMN + " ) " +
+            "SELECT ?, " + DEFAULT_ID_COLUMN + " FROM " + WORK_ITEM_TABLE_NAME + " WHERE " + DEFAULT_ID_COLUMN + " = ?";
+
+    private static final String INSERT_REMOVED_STATEMENT = "INSERT OR IGNORE INTO " + REMOVED_TABLE_NAME + " ( " + DEFAULT_ID_COLUMN + " ) VALUES (?)";
 
     //endregion
 
+    //region Variables
+    private final boolean useWriteAheadLogging;
+    private final int payloadSpillThreshold;
+    private final int priorityAgingPerMinute;
+    private final PayloadFileStore payloadFileStore;
+    private final HashMap<String, SQLiteStatement> compiledStatements = new HashMap<>();
+
+    // Loaded from the database the first time work is claimed. Guarded by readyWorkItemIndexLock, null means it must be reloaded.
+    private final Object readyWorkItemIndexLock = new Object();
+    private ReadyWorkItemIndex readyWorkItemIndex;
+    //endregion
+
     //region Initialize
     WorkItemDatabaseHelper(Context context)
+    {
+        this(context, new TaskManagerConfiguration());
+    }
+
+    WorkItemDatabaseHelper(Context context, TaskManagerConfiguration configuration)
     {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.useWriteAheadLogging = configuration.isUseWriteAheadLogging();
+        this.payloadSpillThreshold = configuration.getPayloadSpillThreshold();
+        this.priorityAgingPerMinute = configuration.getPriorityAgingPerMinute();
+        this.payloadFileStore = new PayloadFileStore(new File(context.getFilesDir(), PAYLOAD_DIRECTORY_NAME));
     }
     //endregion
 
@@ -53,61 +158,436 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
     public void onCreate(SQLiteDatabase db)
     {
        initializeDatabaseTable(db);
+       initializeNotBeforeIndex(db);
+       initializeCoalescingIndex(db);
+       initializeCountTable(db);
+       initializePayloadTable(db);
+       initializeDependencyTable(db);
     }
 
     private void initializeDatabaseTable(SQLiteDatabase db) {
-        // Create statement
-        String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " + WORK_ITEM_TABLE_NAME + " ( " +
+        createWorkItemTable(db, WORK_ITEM_TABLE_NAME);
+    }
+
+    private void createWorkItemTable(SQLiteDatabase db, String tableName) {
+        // Only the columns used for scheduling live here so dispatch scans stay small. Payloads are in PAYLOAD_TABLE_NAME.
+        String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " + tableName + " ( " +
                 DEFAULT_ID_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 TASK_TYPE_COLUMN + " TEXT, " +
                 STATE_COLUMN + " INTEGER, " +
-                DATA_COLUMN + " TEXT, " +
                 MAJOR_PRIORITY_COLUMN + " INTEGER, " +
                 MINOR_PRIORITY_COLUMN + " INTEGER, " +
                 RETRY_COUNT_COLUMN + " INTEGER, " +
                 TIME_CREATED_COLUMN + " INTEGER, " +
                 REQUIRES_INTERNET_COLUMN + " INTEGER, " +
                 MAX_RETRIES_COLUMN + " INTEGER, " +
-                SHOULD_HOLD_COLUMN + " INTEGER )";
+                SHOULD_HOLD_COLUMN + " INTEGER, " +
+                NOT_BEFORE_COLUMN + " INTEGER DEFAULT 0, " +
+                BACKOFF_TYPE_COLUMN + " INTEGER DEFAULT 0, " +
+                BACKOFF_DELAY_COLUMN + " INTEGER DEFAULT 0, " +
+                BACKOFF_MAX_DELAY_COLUMN + " INTEGER DEFAULT 0, " +
+                COALESCING_KEY_COLUMN + " TEXT )";
+
+        db.execSQL(CREATE_TABLE_STATEMENT);
+    }
 
+    private void initializeNotBeforeIndex(SQLiteDatabase db) {
+        // Finds the READY work items that are not due yet, and the earliest of them, without a scan.
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + NOT_BEFORE_INDEX_NAME + " ON " + WORK_ITEM_TABLE_NAME + " ( " +
+                STATE_COLUMN + ", " +
+                NOT_BEFORE_COLUMN + " )");
+    }
+
+    private void initializeCoalescingIndex(SQLiteDatabase db) {
+        // Only READY rows keep their key, the trigger clears it as soon as a row leaves READY. So the unique index
+        // allows one READY work item per task type and key, and a task queued while an earlier copy runs gets a row of its own.
+        // Keys are scoped to their task type, so two task types can use the same key without one swallowing the other.
+        // SQLite treats every NULL as distinct, so rows without a key are never in conflict.
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + COALESCING_INDEX_NAME + " ON " + WORK_ITEM_TABLE_NAME + " ( " + TASK_TYPE_COLUMN + ", " + COALESCING_KEY_COLUMN + " )");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + COALESCING_INDEX_NAME + "_clear AFTER UPDATE OF " + STATE_COLUMN + " ON " + WORK_ITEM_TABLE_NAME + " " +
+                "WHEN NEW." + STATE_COLUMN + " != " + WorkItemState.READY.value() + " AND NEW." + COALESCING_KEY_COLUMN + " IS NOT NULL BEGIN " +
+                "UPDATE " + WORK_ITEM_TABLE_NAME + " SET " + COALESCING_KEY_COLUMN + " = NULL WHERE " + DEFAULT_ID_COLUMN + " = NEW." + DEFAULT_ID_COLUMN + "; " +
+                "END");
+    }
+
+    private void initializePayloadTable(SQLiteDatabase db) {
+        // Payloads are only read when a worker is built, keeping them out of work_item keeps their pages out of dispatch scans.
+        String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " + PAYLOAD_TABLE_NAME + " ( " +
+                WORK_ITEM_ID_COLUMN + " INTEGER PRIMARY KEY, " +
+                PAYLOAD_COLUMN + " BLOB, " +
+                PAYLOAD_CODEC_COLUMN + " INTEGER, " +
+                PAYLOAD_FILE_COLUMN + " TEXT )";
         db.execSQL(CREATE_TABLE_STATEMENT);
+
+        // Lets a payload file be checked for other references before it is deleted.
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + PAYLOAD_FILE_INDEX_NAME + " ON " + PAYLOAD_TABLE_NAME + " ( " + PAYLOAD_FILE_COLUMN + " )");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + PAYLOAD_TABLE_NAME + "_delete AFTER DELETE ON " + WORK_ITEM_TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + PAYLOAD_TABLE_NAME + " WHERE " + WORK_ITEM_ID_COLUMN + " = OLD." + DEFAULT_ID_COLUMN + "; " +
+                "END");
+    }
+
+    private void initializeDependencyTable(SQLiteDatabase db) {
+        // One row for every prerequisite a BLOCKED work item is still waiting on. It becomes READY once its last row is gone.
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + DEPENDENCY_TABLE_NAME + " ( " +
+                WORK_ITEM_ID_COLUMN + " INTEGER NOT NULL, " +
+                DEPENDS_ON_ID_COLUMN + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + WORK_ITEM_ID_COLUMN + ", " + DEPENDS_ON_ID_COLUMN + ") )");
+
+        // Finds the dependents of a work item when it completes or is removed.
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + DEPENDENCY_INDEX_NAME + " ON " + DEPENDENCY_TABLE_NAME + " ( " + DEPENDS_ON_ID_COLUMN + " )");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + DEPENDENCY_TABLE_NAME + "_delete AFTER DELETE ON " + WORK_ITEM_TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + DEPENDENCY_TABLE_NAME + " WHERE " + WORK_ITEM_ID_COLUMN + " = OLD." + DEFAULT_ID_COLUMN + "; " +
+                "END");
+
+        // The ids of work items that were deleted without completing, so a task queued later with one of them as its
+        // prerequisite can tell it will never complete. Only the deletes that are not a completion write to it.
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + REMOVED_TABLE_NAME + " ( " + DEFAULT_ID_COLUMN + " INTEGER PRIMARY KEY )");
+    }
+
+    private void initializeCountTable(SQLiteDatabase db) {
+        // One row per task type and state, kept up to date by triggers so the count methods never scan work_item.
+        // Because the triggers run inside the statement that changes work_item, the counts commit and roll back with it.
+        String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " + COUNT_TABLE_NAME + " ( " +
+                TASK_TYPE_COLUMN + " TEXT NOT NULL, " +
+                STATE_COLUMN + " INTEGER NOT NULL, " +
+                COUNT_COLUMN + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + TASK_TYPE_COLUMN + ", " + STATE_COLUMN + ") )";
+        db.execSQL(CREATE_TABLE_STATEMENT);
+
+        db.execSQL("DELETE FROM " + COUNT_TABLE_NAME);
+        db.execSQL("INSERT INTO " + COUNT_TABLE_NAME + " (" + TASK_TYPE_COLUMN + ", " + STATE_COLUMN + ", " + COUNT_COLUMN + ") " +
+                "SELECT " + countKey("", TASK_TYPE_COLUMN, STATE_COLUMN) + ", count(*) FROM " + WORK_ITEM_TABLE_NAME + " " +
+                "GROUP BY 1, 2");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + COUNT_TABLE_NAME + "_insert AFTER INSERT ON " + WORK_ITEM_TABLE_NAME + " BEGIN " +
+                incrementCountStatement("NEW.") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + COUNT_TABLE_NAME + "_delete AFTER DELETE ON " + WORK_ITEM_TABLE_NAME + " BEGIN " +
+                decrementCountStatement("OLD.") +
+                "END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + COUNT_TABLE_NAME + "_update AFTER UPDATE OF " + TASK_TYPE_COLUMN + ", " + STATE_COLUMN + " ON " + WORK_ITEM_TABLE_NAME + " " +
+                "WHEN OLD." + TASK_TYPE_COLUMN + " IS NOT NEW." + TASK_TYPE_COLUMN + " OR OLD." + STATE_COLUMN + " IS NOT NEW." + STATE_COLUMN + " BEGIN " +
+                decrementCountStatement("OLD.") +
+                incrementCountStatement("NEW.") +
+                "END");
+    }
+
+    private String countKey(String rowPrefix, String taskTypeColumn, String stateColumn) {
+        return "IFNULL(" + rowPrefix + taskTypeColumn + ", ''), IFNULL(" + rowPrefix + stateColumn + ", -1)";
+    }
+
+    private String incrementCountStatement(String rowPrefix) {
+        return "INSERT OR IGNORE INTO " + COUNT_TABLE_NAME + " (" + TASK_TYPE_COLUMN + ", " + STATE_COLUMN + ", " + COUNT_COLUMN + ") " +
+                "VALUES (" + countKey(rowPrefix, TASK_TYPE_COLUMN, STATE_COLUMN) + ", 0); " +
+                "UPDATE " + COUNT_TABLE_NAME + " SET " + COUNT_COLUMN + " = " + COUNT_COLUMN + " + 1 " +
+                "WHERE " + countRowMatches(rowPrefix) + "; ";
+    }
+
+    private String decrementCountStatement(String rowPrefix) {
+        return "UPDATE " + COUNT_TABLE_NAME + " SET " + COUNT_COLUMN + " = " + COUNT_COLUMN + " - 1 " +
+                "WHERE " + countRowMatches(rowPrefix) + "; ";
+    }
+
+    private String countRowMatches(String rowPrefix) {
+        return TASK_TYPE_COLUMN + " = IFNULL(" + rowPrefix + TASK_TYPE_COLUMN + ", '') AND " + STATE_COLUMN + " = IFNULL(" + rowPrefix + STATE_COLUMN + ", -1)";
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db)
+    {
+        super.onConfigure(db);
+
+        // In WAL mode SQLiteDatabase keeps one primary connection for writes and hands reads that are
+        // not part of a transaction to a small pool of secondary connections, so readers and the writer
+        // no longer block each other. Turned on here so it applies before anything else runs on the connection.
+        if (useWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db)
+    {
+        super.onOpen(db);
+
+        // onConfigure is only called from API 16 on.
+        if (useWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // Only a Task queued by this process knows the id of its work item, so removals from before it started can never be asked about.
+        if (!db.isReadOnly()) {
+            db.execSQL("DELETE FROM " + REMOVED_TABLE_NAME);
+        }
+    }
+
+    private void migrateDataToPayload(SQLiteDatabase db) {
+        if (!columnExists(db, WORK_ITEM_TABLE_NAME, PAYLOAD_COLUMN)) {
+            db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + PAYLOAD_COLUMN + " BLOB");
+        }
+        if (!columnExists(db, WORK_ITEM_TABLE_NAME, PAYLOAD_CODEC_COLUMN)) {
+            db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + PAYLOAD_CODEC_COLUMN + " INTEGER");
+        }
+
+        if (!columnExists(db, WORK_ITEM_TABLE_NAME, DATA_COLUMN)) {
+            return;
+        }
+
+        // The data column always held JSON text, its UTF-8 bytes are exactly a JSON codec payload.
+        db.execSQL("UPDATE " + WORK_ITEM_TABLE_NAME + " SET " +
+                PAYLOAD_COLUMN + " = CAST(" + DATA_COLUMN + " AS BLOB), " +
+                PAYLOAD_CODEC_COLUMN + " = " + PayloadCodec.JSON.value() + ", " +
+                DATA_COLUMN + " = NULL " +
+                "WHERE " + DATA_COLUMN + " IS NOT NULL");
+    }
+
+    private void moveWorkItemPayloadsToPayloadTable(SQLiteDatabase db) {
+        // The file index used to live on work_item under the same name.
+        db.execSQL("DROP INDEX IF EXISTS " + PAYLOAD_FILE_INDEX_NAME);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PAYLOAD_TABLE_NAME + " ( " +
+                WORK_ITEM_ID_COLUMN + " INTEGER PRIMARY KEY, " +
+                PAYLOAD_COLUMN + " BLOB, " +
+                PAYLOAD_CODEC_COLUMN + " INTEGER, " +
+                PAYLOAD_FILE_COLUMN + " TEXT )");
+        db.execSQL("INSERT OR REPLACE INTO " + PAYLOAD_TABLE_NAME + " (" + WORK_ITEM_ID_COLUMN + ", " + PAYLOAD_COLUMN + ", " + PAYLOAD_CODEC_COLUMN + ", " + PAYLOAD_FILE_COLUMN + ") " +
+                "SELECT " + DEFAULT_ID_COLUMN + ", " + PAYLOAD_COLUMN + ", " + PAYLOAD_CODEC_COLUMN + ", " + PAYLOAD_FILE_COLUMN + " FROM " + WORK_ITEM_TABLE_NAME + " " +
+                "WHERE " + PAYLOAD_COLUMN + " IS NOT NULL OR " + PAYLOAD_FILE_COLUMN + " IS NOT NULL");
+
+        // SQLite cannot drop columns, so copy the scheduling columns into a new table and swap it in.
+        // Dropping the old table also drops its indexes and triggers, they are recreated on the new one.
+        // Columns added by later versions do not exist yet and are left at their defaults.
+        ArrayList<String> existingColumns = new ArrayList<>();
+        for (String column : DEFAULT_COLUMNS) {
+            if (columnExists(db, WORK_ITEM_TABLE_NAME, column)) {
+                existingColumns.add(column);
+            }
+        }
+        String schedulingColumns = TextUtils.join(", ", existingColumns);
+        String newTableName = WORK_ITEM_TABLE_NAME + "_new";
+        createWorkItemTable(db, newTableName);
+        db.execSQL("INSERT INTO " + newTableName + " (" + schedulingColumns + ") SELECT " + schedulingColumns + " FROM " + WORK_ITEM_TABLE_NAME);
+        db.execSQL("DROP TABLE " + WORK_ITEM_TABLE_NAME);
+        db.execSQL("ALTER TABLE " + newTableName + " RENAME TO " + WORK_ITEM_TABLE_NAME);
+
+        initializeCountTable(db);
+        initializePayloadTable(db);
+    }
+
+    private boolean columnExists(SQLiteDatabase db, String tableName, String columnName) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        boolean exists = false;
+        while (cursor.moveToNext()) {
+            if (columnName.equals(cursor.getString(cursor.getColumnIndex("name")))) {
+                exists = true;
+                break;
+            }
+        }
+        cursor.close();
+        return exists;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        synchronized (compiledStatements) {
+            for (SQLiteStatement statement : compiledStatements.values()) {
+                statement.close();
+            }
+            compiledStatements.clear();
+        }
+        super.close();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
-        this.onCreate(db);
+        initializeDatabaseTable(db);
+
+        if (oldVersion < 3) {
+            initializeCountTable(db);
+        }
+
+        if (oldVersion < 4) {
+            migrateDataToPayload(db);
+        }
+
+        if (oldVersion < 5) {
+            if (!columnExists(db, WORK_ITEM_TABLE_NAME, PAYLOAD_FILE_COLUMN)) {
+                db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + PAYLOAD_FILE_COLUMN + " TEXT");
+            }
+        }
+
+        if (oldVersion < 6) {
+            moveWorkItemPayloadsToPayloadTable(db);
+        }
+
+        if (oldVersion < 7) {
+            if (!columnExists(db, WORK_ITEM_TABLE_NAME, NOT_BEFORE_COLUMN)) {
+                db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + NOT_BEFORE_COLUMN + " INTEGER DEFAULT 0");
+            }
+            initializeNotBeforeIndex(db);
+        }
+
+        if (oldVersion < 8) {
+            String[] backoffColumns = {BACKOFF_TYPE_COLUMN, BACKOFF_DELAY_COLUMN, BACKOFF_MAX_DELAY_COLUMN};
+            for (String column : backoffColumns) {
+                if (!columnExists(db, WORK_ITEM_TABLE_NAME, column)) {
+                    db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + column + " INTEGER DEFAULT 0");
+                }
+            }
+        }
+
+        if (oldVersion < 9) {
+            initializeDependencyTable(db);
+        }
+
+        if (oldVersion < 10) {
+            if (!columnExists(db, WORK_ITEM_TABLE_NAME, COALESCING_KEY_COLUMN)) {
+                db.execSQL("ALTER TABLE " + WORK_ITEM_TABLE_NAME + " ADD COLUMN " + COALESCING_KEY_COLUMN + " TEXT");
+            }
+            initializeCoalescingIndex(db);
+        }
+
+        if (oldVersion < 11) {
+            // Versions 2 to 10 indexed the SQL dispatch query. Work is claimed from the in-memory ready index now,
+            // so the index only slowed down every write. This is the only step that touches it.
+            db.execSQL("DROP INDEX IF EXISTS " + DISPATCH_INDEX_NAME);
+        }
+
+        if (oldVersion < 12) {
+            // Versions 9 to 11 recorded every delete with a trigger, which added a row write to every completion.
+            db.execSQL("DROP TRIGGER IF EXISTS " + REMOVED_TABLE_NAME + "_delete");
+        }
     }
     //endregion
 
     //region Protected Methods
-    InternalWorkItem getNextWorkItemForTaskTypes(Set<String> taskTypes, boolean hasInternet) {
-        if (taskTypes.size() == 0) {
-            return null;
+    /**
+     * Claims up to limit work items from the ready index in one transaction, in the order they should run.
+     */
+    ArrayList<InternalWorkItem> claimNextWorkItems(Set<String> taskTypes, boolean hasInternet, int limit) {
+        return claimNextWorkItems(taskTypes, null, hasInternet, limit);
+    }
+
+    /**
+     * Same as claimNextWorkItems, but claims no more work items of a task type than limitByTaskType allows.
+     */
+    ArrayList<InternalWorkItem> claimNextWorkItems(Set<String> taskTypes, Map<String, Integer> limitByTaskType, boolean hasInternet, int limit) {
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        if (taskTypes.size() == 0 || limit < 1) {
+            return claimedWorkItems;
         }
 
-        ArrayList<String> args = new ArrayList<>();
-        args.add(""+WorkItemState.READY.value());
-        args.addAll(taskTypes);
+        // Counts down as work items are claimed, stale index entries can make the loop below ask more than once.
+        HashMap<String, Integer> remainingByTaskType = (limitByTaskType != null) ? new HashMap<>(limitByTaskType) : null;
+
+        SQLiteDatabase db = getWritableDatabase();
+        synchronized (readyWorkItemIndexLock) {
+            ReadyWorkItemIndex index = loadedReadyWorkItemIndex();
+            index.promoteDueEntries(System.currentTimeMillis());
+            boolean success = false;
+
+            db.beginTransaction();
+            try {
+                while (claimedWorkItems.size() < limit) {
+                    ArrayList<InternalWorkItem> workItems = index.nextWorkItems(taskTypes, remainingByTaskType, hasInternet, limit - claimedWorkItems.size());
+                    if (workItems.size() == 0) {
+                        break;
+                    }
 
-        String stringWithCorrectNumberOfQuestionMarks = queryStringForTaskTypeArray(taskTypes);
-        String getNextQueryString = "" + STATE_COLUMN + " = ? AND " + TASK_TYPE_COLUMN + " IN " + stringWithCorrectNumberOfQuestionMarks;
+                    for (InternalWorkItem workItem : workItems) {
+                        // Whether it is claimed or the entry turns out to be stale, it no longer belongs in the index.
+                        index.remove(workItem.getId());
+                    }
 
-        if (!hasInternet) {
-            getNextQueryString = getNextQueryString + " AND " + REQUIRES_INTERNET_COLUMN + " = ? ";
-            args.add("0");
+                    for (InternalWorkItem workItem : changeStateOfWorkItems(db, workItems, WorkItemState.READY, WorkItemState.EXECUTING)) {
+                        workItem.setState(WorkItemState.EXECUTING);
+                        claimedWorkItems.add(workItem);
+
+                        Integer remaining = (remainingByTaskType != null) ? remainingByTaskType.get(workItem.getTaskType()) : null;
+                        if (remaining != null) {
+                            remainingByTaskType.put(workItem.getTaskType(), remaining - 1);
+                        }
+                    }
+                }
+
+                db.setTransactionSuccessful();
+                success = true;
+            } finally {
+                db.endTransaction();
+                if (!success) {
+                    readyWorkItemIndex = null;
+                    claimedWorkItems.clear();
+                }
+            }
         }
+        return claimedWorkItems;
+    }
 
-        String orderByString = "" + MAJOR_PRIORITY_COLUMN + " DESC, " + MINOR_PRIORITY_COLUMN + " DESC, " + RETRY_COUNT_COLUMN + " ASC, " + TIME_CREATED_COLUMN + " DESC";
+    /**
+     * Puts a claimed work item back to READY without touching any of its other columns.
+     */
+    boolean releaseClaimedWorkItem(InternalWorkItem workItem) {
+        boolean success = changeStateOfWorkItem(getWritableDatabase(), workItem, WorkItemState.EXECUTING, WorkItemState.READY);
+        if (success) {
+            workItem.setState(WorkItemState.READY);
+            addToReadyWorkItemIndex(workItem.getId(), workItem);
+        }
+        return success;
+    }
 
-        String[] stringArgs = new String[args.size()];
-        args.toArray(stringArgs);
+    /**
+     * Puts a failed work item back to READY with one more retry and its not before time, the rest of the row is left alone.
+     */
+    boolean retryFailedWorkItem(InternalWorkItem workItem) {
+        Object[] updateArgs = {WorkItemState.READY.value(), workItem.getNotBefore(), workItem.getId(), WorkItemState.EXECUTING.value()};
+        boolean success = executeUpdateStatement(getWritableDatabase(), RETRY_WORK_ITEM_STATEMENT, updateArgs) == 1;
+        if (success) {
+            // The retry count was incremented in SQL, read the row back so the index matches it exactly.
+            String[] args = {workItem.getId()+"", ""+WorkItemState.READY.value()};
+            Cursor cursor = getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, DEFAULT_ID_COLUMN + " == ? AND " + STATE_COLUMN + " == ?", args, null, null, null);
+            ArrayList<InternalWorkItem> workItems = workItemsFromCursor(cursor);
+            cursor.close();
+            for (InternalWorkItem readyWorkItem : workItems) {
+                addToReadyWorkItemIndex(readyWorkItem.getId(), readyWorkItem);
+            }
+        }
+        return success;
+    }
 
-        Cursor resultCursor = getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, getNextQueryString, stringArgs, null, null, orderByString, "1");
-        InternalWorkItem workItem = workItemFromCursor(resultCursor);
-        resultCursor.close();
+    /**
+     * Moves a failed work item to HOLDING and increments its retry count. The rest of the row, including its data, is left alone.
+     */
+    boolean holdFailedWorkItem(InternalWorkItem workItem) {
+        return failWorkItem(workItem, WorkItemState.HOLDING);
+    }
 
-        return workItem;
+    /**
+     * Work items are claimed without their payload, call this once one is actually going to run.
+     */
+    void loadPayloadOfWorkItem(InternalWorkItem workItem) {
+        String[] args = {workItem.getId()+""};
+        Cursor cursor = getReadableDatabase().query(PAYLOAD_TABLE_NAME, PAYLOAD_COLUMNS, WORK_ITEM_ID_COLUMN + " == ?", args, null, null, null);
+        if (cursor.moveToFirst()) {
+            PayloadCodec payloadCodec = PayloadCodec.valueOf(cursor.getInt(cursor.getColumnIndex(PAYLOAD_CODEC_COLUMN)));
+            if (payloadCodec == null) {
+                payloadCodec = PayloadCodec.JSON;
+            }
+            String payloadFileName = cursor.getString(cursor.getColumnIndex(PAYLOAD_FILE_COLUMN));
+            if (payloadFileName != null) {
+                workItem.setPayloadFile(payloadFileStore.fileForName(payloadFileName), payloadCodec);
+            } else {
+                workItem.setPayload(payloadCodec.decode(cursor.getBlob(cursor.getColumnIndex(PAYLOAD_COLUMN))), payloadCodec);
+            }
+        } else {
+            workItem.setPayload(null, PayloadCodec.JSON);
+        }
+        cursor.close();
     }
 
     boolean addNewWorkItem(InternalWorkItem workItem) {
@@ -116,7 +596,6 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
 
         ContentValues values = new ContentValues();
         values.put(TASK_TYPE_COLUMN, workItem.getTaskType());
-        values.put(DATA_COLUMN, workItem.getData());
         values.put(MAJOR_PRIORITY_COLUMN, workItem.getMajorPriority());
         values.put(MINOR_PRIORITY_COLUMN, workItem.getMinorPriority());
         values.put(RETRY_COUNT_COLUMN, workItem.getRetryCount());
@@ -124,6 +603,11 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         values.put(REQUIRES_INTERNET_COLUMN, requiresInternet);
         values.put(MAX_RETRIES_COLUMN, workItem.getMaxRetries());
         values.put(SHOULD_HOLD_COLUMN, shouldHold);
+        values.put(NOT_BEFORE_COLUMN, workItem.getNotBefore());
+        values.put(BACKOFF_TYPE_COLUMN, workItem.getBackoffPolicy().type().value());
+        values.put(BACKOFF_DELAY_COLUMN, workItem.getBackoffPolicy().delayMillis());
+        values.put(BACKOFF_MAX_DELAY_COLUMN, workItem.getBackoffPolicy().maxDelayMillis());
+        values.put(COALESCING_KEY_COLUMN, coalescingKeyOfWorkItem(workItem));
 
         if (workItem.getState() != null) {
             values.put(STATE_COLUMN, workItem.getState().value());
@@ -132,47 +616,259 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
             return false;
         }
 
-        long returnValue = getWritableDatabase().insert(WORK_ITEM_TABLE_NAME, null, values);
-        return  (returnValue == -1) ? false : true;
+        SQLiteDatabase db = getWritableDatabase();
+        long newId = -1;
+        long coalescedId = -1;
+        ArrayList<String> payloadFileNames = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            if (hasRemovedPrerequisite(db, workItem, null)) {
+                Log.e("TaskManager", "Could not add work item, one of its prerequisites was removed without completing.");
+                return false;
+            }
+            coalescedId = coalesceWorkItem(db, workItem, payloadFileNames);
+            if (coalescedId == -1) {
+                long returnValue = db.insert(WORK_ITEM_TABLE_NAME, null, values);
+                if (returnValue == -1 || !writePayloadOfWorkItem(db, returnValue, workItem)) {
+                    return false;
+                }
+                writeDependenciesOfWorkItem(db, returnValue, workItem, null);
+                newId = returnValue;
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException exception) {
+            Log.e("TaskManager", "Could not add work item " + exception.toString());
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+
+        if (coalescedId != -1) {
+            deletePayloadFilesIfUnreferenced(payloadFileNames);
+            workItem.setId((int) coalescedId);
+            reloadReadyWorkItemIndexEntry((int) coalescedId);
+            return true;
+        }
+        workItem.setId((int) newId);
+        addToReadyWorkItemIndex((int) newId, workItem);
+        return true;
     }
 
-    boolean updateWorkItem(InternalWorkItem workItem) {
-        int requiresInternet = (workItem.isRequiresInternet()) ? 1 : 0;
-        int shouldHold = (workItem.isShouldHold()) ? 1 : 0;
+    /**
+     * Adds all of the work items in one transaction or none of them. One whose prerequisite was removed is left out and gets the id -1.
+     */
+    boolean addNewWorkItems(List<InternalWorkItem> workItems) {
+        if (workItems.size() == 0) {
+            return true;
+        }
 
-        ContentValues values = new ContentValues();
-        values.put(TASK_TYPE_COLUMN, workItem.getTaskType());
-        values.put(DATA_COLUMN, workItem.getData());
-        values.put(MAJOR_PRIORITY_COLUMN, workItem.getMajorPriority());
-        values.put(MINOR_PRIORITY_COLUMN, workItem.getMinorPriority());
-        values.put(RETRY_COUNT_COLUMN, workItem.getRetryCount());
-        values.put(TIME_CREATED_COLUMN, workItem.getTimeCreated());
-        values.put(REQUIRES_INTERNET_COLUMN, requiresInternet);
-        values.put(MAX_RETRIES_COLUMN, workItem.getMaxRetries());
-        values.put(SHOULD_HOLD_COLUMN, shouldHold);
+        for (InternalWorkItem workItem : workItems) {
+            if (workItem.getState() == null) {
+                Log.e("TaskManager", "You must have a state for every work item before adding them.");
+                return false;
+            }
+        }
 
-        if (workItem.getState() != null) {
-            values.put(STATE_COLUMN, workItem.getState().value());
-        } else {
-            System.out.println("You must have a state for the work item before updating it.");
-            return false;
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insertStatement = db.compileStatement(INSERT_WORK_ITEM_STATEMENT);
+        long[] newIds = new long[workItems.size()];
+        boolean[] isCoalesced = new boolean[workItems.size()];
+        // Lets a work item depend on one inserted before it in this transaction, before either has its id set.
+        IdentityHashMap<InternalWorkItem, Long> insertedIds = new IdentityHashMap<>();
+        ArrayList<String> payloadFileNames = new ArrayList<>();
+        boolean success = false;
+
+        db.beginTransaction();
+        try {
+            for (int i=0; i<workItems.size(); i++) {
+                if (hasRemovedPrerequisite(db, workItems.get(i), insertedIds)) {
+                    newIds[i] = -1;
+                    insertedIds.put(workItems.get(i), newIds[i]);
+                    continue;
+                }
+
+                newIds[i] = coalesceWorkItem(db, workItems.get(i), payloadFileNames);
+                isCoalesced[i] = newIds[i] != -1;
+                if (!isCoalesced[i]) {
+                    bindWorkItemToInsertStatement(workItems.get(i), insertStatement);
+
+                    newIds[i] = insertStatement.executeInsert();
+                    if (newIds[i] == -1 || !writePayloadOfWorkItem(db, newIds[i], workItems.get(i))) {
+                        return false;
+                    }
+                    writeDependenciesOfWorkItem(db, newIds[i], workItems.get(i), insertedIds);
+                }
+                insertedIds.put(workItems.get(i), newIds[i]);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (SQLException exception) {
+            Log.e("TaskManager", "Could not add work items, rolling back " + exception.toString());
+        } finally {
+            db.endTransaction();
+            insertStatement.close();
         }
 
-        String[] args = {workItem.getId()+""};
-        int numberOfRowsAffected = getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, DEFAULT_ID_COLUMN + " == ?", args);
-        return (numberOfRowsAffected == 1) ? true : false;
+        if (success) {
+            deletePayloadFilesIfUnreferenced(payloadFileNames);
+            for (int i=0; i<workItems.size(); i++) {
+                workItems.get(i).setId((int) newIds[i]);
+                if (newIds[i] == -1) {
+                    continue;
+                }
+                if (isCoalesced[i]) {
+                    reloadReadyWorkItemIndexEntry((int) newIds[i]);
+                } else {
+                    addToReadyWorkItemIndex((int) newIds[i], workItems.get(i));
+                }
+            }
+        }
+        return success;
     }
 
+    /**
+     * Deletes a work item that will not run again, along with the work items waiting on it.
+     */
     boolean deleteWorkItem(InternalWorkItem workItem) {
+        ArrayList<String> payloadFileNames = new ArrayList<>();
+        boolean success = deleteWorkItem(workItem, true, payloadFileNames);
+        deletePayloadFilesIfUnreferenced(payloadFileNames);
+        return success;
+    }
+
+    // Leaves deleting the payload files to the caller. isRemoved is false when the work item completed.
+    private boolean deleteWorkItem(InternalWorkItem workItem, boolean isRemoved, List<String> payloadFileNames) {
         String[] args = {workItem.getId()+""};
-        int numberOfRowsAffected = getWritableDatabase().delete(WORK_ITEM_TABLE_NAME, DEFAULT_ID_COLUMN + " == ?", args);
+        if (workItem.isPayloadLoaded() && workItem.getPayloadFile() == null) {
+            // The payload row, if any, is removed by a trigger.
+            SQLiteDatabase db = getWritableDatabase();
+            int numberOfRowsAffected = db.delete(WORK_ITEM_TABLE_NAME, DEFAULT_ID_COLUMN + " == ?", args);
+            removeFromReadyWorkItemIndex(workItem.getId());
+            if (numberOfRowsAffected == 1 && isRemoved) {
+                recordRemovedWorkItem(db, workItem.getId());
+            }
+            if (numberOfRowsAffected == 1) {
+                deleteWorkItemsAndTheirDependents(db, dependentIdsOfWorkItems(db, Arrays.asList(workItem.getId())), payloadFileNames);
+            }
+            return (numberOfRowsAffected == 1) ? true : false;
+        }
 
-        return (numberOfRowsAffected == 1) ? true : false;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String payloadFileName = payloadFileNameOfWorkItem(db, workItem.getId());
+            int numberOfRowsAffected = db.delete(WORK_ITEM_TABLE_NAME, DEFAULT_ID_COLUMN + " == ?", args);
+            if (numberOfRowsAffected == 1 && payloadFileName != null) {
+                payloadFileNames.add(payloadFileName);
+            }
+            if (numberOfRowsAffected == 1 && isRemoved) {
+                recordRemovedWorkItem(db, workItem.getId());
+            }
+            if (numberOfRowsAffected == 1) {
+                deleteWorkItemsAndTheirDependents(db, dependentIdsOfWorkItems(db, Arrays.asList(workItem.getId())), payloadFileNames);
+            }
+            db.setTransactionSuccessful();
+            return (numberOfRowsAffected == 1) ? true : false;
+        } finally {
+            db.endTransaction();
+            removeFromReadyWorkItemIndex(workItem.getId());
+        }
+    }
+
+    /**
+     * Deletes a work item that finished successfully and moves every work item that was only waiting on it from BLOCKED to READY.
+     */
+    boolean completeWorkItem(InternalWorkItem workItem) {
+        String[] args = {workItem.getId()+""};
+        ArrayList<Integer> unblockedIds = new ArrayList<>();
+        ArrayList<String> payloadFileNames = new ArrayList<>();
+        boolean success = false;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // The edges go first so deleteWorkItem does not take the dependents with it.
+            ArrayList<Integer> dependentIds = dependentIdsOfWorkItems(db, Arrays.asList(workItem.getId()));
+            db.delete(DEPENDENCY_TABLE_NAME, DEPENDS_ON_ID_COLUMN + " == ?", args);
+            if (!deleteWorkItem(workItem, false, payloadFileNames)) {
+                return false;
+            }
+
+            for (int dependentId : dependentIds) {
+                Object[] updateArgs = {WorkItemState.READY.value(), dependentId, WorkItemState.BLOCKED.value()};
+                if (!hasOpenPrerequisites(db, dependentId) && executeUpdateStatement(db, CHANGE_STATE_STATEMENT, updateArgs) == 1) {
+                    unblockedIds.add(dependentId);
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+        }
+
+        if (success) {
+            deletePayloadFilesIfUnreferenced(payloadFileNames);
+            addWorkItemsWithIdsToReadyWorkItemIndex(unblockedIds);
+        }
+        return success;
     }
 
     void deleteWorkItemsWithTaskType(String taskType) {
         String[] args = {taskType};
-        getWritableDatabase().delete(WORK_ITEM_TABLE_NAME, TASK_TYPE_COLUMN + " == ?", args);
+
+        SQLiteDatabase db = getWritableDatabase();
+        ArrayList<String> payloadFileNames = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            // Work items of other task types that wait on the ones being deleted.
+            ArrayList<Integer> dependentIds = new ArrayList<>();
+            Cursor dependentCursor = db.rawQuery("select distinct d." + WORK_ITEM_ID_COLUMN + " from " + DEPENDENCY_TABLE_NAME + " d join " + WORK_ITEM_TABLE_NAME + " w on w." + DEFAULT_ID_COLUMN + " = d." + DEPENDS_ON_ID_COLUMN + " " +
+                    "where w." + TASK_TYPE_COLUMN + " == ?", args);
+            while (dependentCursor.moveToNext()) {
+                dependentIds.add(dependentCursor.getInt(0));
+            }
+            dependentCursor.close();
+
+            Cursor cursor = db.rawQuery("select distinct p." + PAYLOAD_FILE_COLUMN + " from " + PAYLOAD_TABLE_NAME + " p join " + WORK_ITEM_TABLE_NAME + " w on w." + DEFAULT_ID_COLUMN + " = p." + WORK_ITEM_ID_COLUMN + " " +
+                    "where w." + TASK_TYPE_COLUMN + " == ? and p." + PAYLOAD_FILE_COLUMN + " is not null", args);
+            while (cursor.moveToNext()) {
+                payloadFileNames.add(cursor.getString(0));
+            }
+            cursor.close();
+
+            db.execSQL("INSERT OR IGNORE INTO " + REMOVED_TABLE_NAME + " ( " + DEFAULT_ID_COLUMN + " ) " +
+                    "SELECT " + DEFAULT_ID_COLUMN + " FROM " + WORK_ITEM_TABLE_NAME + " WHERE " + TASK_TYPE_COLUMN + " == ?", args);
+            db.delete(WORK_ITEM_TABLE_NAME, TASK_TYPE_COLUMN + " == ?", args);
+            deleteWorkItemsAndTheirDependents(db, dependentIds, payloadFileNames);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deletePayloadFilesIfUnreferenced(payloadFileNames);
+
+        synchronized (readyWorkItemIndexLock) {
+            if (readyWorkItemIndex != null) {
+                readyWorkItemIndex.removeTaskType(taskType);
+            }
+        }
+    }
+
+    /**
+     * Deletes payload files that no work item refers to. Only call this while nothing else is adding work items.
+     */
+    void removeUnreferencedPayloadFiles() {
+        HashSet<String> referencedNames = new HashSet<>();
+        Cursor cursor = getReadableDatabase().rawQuery("select distinct " + PAYLOAD_FILE_COLUMN + " from " + PAYLOAD_TABLE_NAME + " where " + PAYLOAD_FILE_COLUMN + " is not null", null);
+        while (cursor.moveToNext()) {
+            referencedNames.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        for (String name : payloadFileStore.allNames()) {
+            if (!referencedNames.contains(name)) {
+                payloadFileStore.delete(name);
+            }
+        }
     }
 
     void changePriorityOfTaskType(String taskType, int newMajorPriority) {
@@ -182,6 +878,12 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         values.put(MAJOR_PRIORITY_COLUMN, newMajorPriority);
 
         getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, TASK_TYPE_COLUMN + " == ?", args);
+
+        synchronized (readyWorkItemIndexLock) {
+            if (readyWorkItemIndex != null) {
+                readyWorkItemIndex.changePriorityOfTaskType(taskType, newMajorPriority);
+            }
+        }
     }
 
     void restartHoldingTasks() {
@@ -191,6 +893,7 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         values.put(STATE_COLUMN, WorkItemState.READY.value());
 
         getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, STATE_COLUMN + " == ?", args);
+        invalidateReadyWorkItemIndex();
     }
 
     void restartExecutingTasks() {
@@ -200,12 +903,13 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         values.put(STATE_COLUMN, WorkItemState.READY.value());
 
         getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, STATE_COLUMN + " == ?", args);
+        invalidateReadyWorkItemIndex();
     }
 
     int countOfWorkItemsWithTaskType(String taskType) {
         String[] args = {taskType};
 
-        Cursor cursor = getReadableDatabase().rawQuery("select count(*) from " + WORK_ITEM_TABLE_NAME + " where " + TASK_TYPE_COLUMN + " == ? ",args);
+        Cursor cursor = getReadableDatabase().rawQuery("select ifnull(sum(" + COUNT_COLUMN + "), 0) from " + COUNT_TABLE_NAME + " where " + TASK_TYPE_COLUMN + " == ? ",args);
         cursor.moveToFirst();
         int count = cursor.getInt(0);
         cursor.close();
@@ -213,10 +917,32 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         return count;
     }
 
+    /**
+     * Counts the READY work items of each task type in the ready index, task types without any are left out.
+     */
+    HashMap<String, Integer> countOfReadyWorkItemsByTaskType(Set<String> taskTypes, boolean hasInternet) {
+        synchronized (readyWorkItemIndexLock) {
+            ReadyWorkItemIndex index = loadedReadyWorkItemIndex();
+            index.promoteDueEntries(System.currentTimeMillis());
+            return index.countByTaskType(taskTypes, hasInternet);
+        }
+    }
+
+    /**
+     * @return The not before time of the READY work item that becomes due next, or 0 if every READY work item is already due.
+     */
+    long timeOfNextDeferredWorkItem() {
+        synchronized (readyWorkItemIndexLock) {
+            ReadyWorkItemIndex index = loadedReadyWorkItemIndex();
+            index.promoteDueEntries(System.currentTimeMillis());
+            return index.earliestNotBefore();
+        }
+    }
+
     int countOfWorkItemsNotHolding() {
         String[] args = {"" + WorkItemState.HOLDING.value()};
 
-        Cursor cursor = getReadableDatabase().rawQuery("select count(*) from " + WORK_ITEM_TABLE_NAME + " where " + STATE_COLUMN + " != ? ",args);
+        Cursor cursor = getReadableDatabase().rawQuery("select ifnull(sum(" + COUNT_COLUMN + "), 0) from " + COUNT_TABLE_NAME + " where " + STATE_COLUMN + " != ? ",args);
         cursor.moveToFirst();
         int count = cursor.getInt(0);
         cursor.close();
@@ -227,16 +953,26 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         SQLiteDatabase db = getWritableDatabase();
 
         db.execSQL("DROP TABLE " + WORK_ITEM_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PAYLOAD_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DEPENDENCY_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + REMOVED_TABLE_NAME);
         initializeDatabaseTable(db);
+        initializeNotBeforeIndex(db);
+        initializeCoalescingIndex(db);
+        initializeCountTable(db);
+        initializePayloadTable(db);
+        initializeDependencyTable(db);
+        payloadFileStore.deleteAll();
+        invalidateReadyWorkItemIndex();
     }
 
     //endregion
 
     //region Helpers
 
-    private String queryStringForTaskTypeArray(Set<String> taskTypes) {
+    private String questionMarksForCount(int count) {
         String query = "(";
-        for (int i=1; i<taskTypes.size(); i++) {
+        for (int i=1; i<count; i++) {
             query = query + "?, ";
         }
         query = query + "?)";
@@ -244,13 +980,444 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         return query;
     }
 
-    private InternalWorkItem workItemFromCursor(Cursor cursor) {
-        if (cursor.getCount() == 0) {
+    /**
+     * Must be called with readyWorkItemIndexLock held.
+     */
+    private ReadyWorkItemIndex loadedReadyWorkItemIndex() {
+        if (readyWorkItemIndex == null) {
+            ReadyWorkItemIndex index = new ReadyWorkItemIndex(priorityAgingPerMinute, System.currentTimeMillis());
+
+            String[] args = {""+WorkItemState.READY.value()};
+            Cursor cursor = getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, STATE_COLUMN + " == ?", args, null, null, null);
+            for (InternalWorkItem workItem : workItemsFromCursor(cursor)) {
+                index.add(workItem.getId(), workItem);
+            }
+            cursor.close();
+
+            readyWorkItemIndex = index;
+        }
+        return readyWorkItemIndex;
+    }
+
+    // Writes only touch the index once it is loaded, the first load reads everything they committed before it.
+    private void addToReadyWorkItemIndex(int id, InternalWorkItem workItem) {
+        if (workItem.getState() != WorkItemState.READY) {
+            return;
+        }
+        synchronized (readyWorkItemIndexLock) {
+            if (readyWorkItemIndex != null) {
+                readyWorkItemIndex.add(id, workItem);
+            }
+        }
+    }
+
+    private void removeFromReadyWorkItemIndex(int id) {
+        synchronized (readyWorkItemIndexLock) {
+            if (readyWorkItemIndex != null) {
+                readyWorkItemIndex.remove(id);
+            }
+        }
+    }
+
+    private void reloadReadyWorkItemIndexEntry(int workItemId) {
+        synchronized (readyWorkItemIndexLock) {
+            removeFromReadyWorkItemIndex(workItemId);
+            addWorkItemsWithIdsToReadyWorkItemIndex(Arrays.asList(workItemId));
+        }
+    }
+
+    private void invalidateReadyWorkItemIndex() {
+        synchronized (readyWorkItemIndexLock) {
+            readyWorkItemIndex = null;
+        }
+    }
+
+    // Reads the rows under the lock like a claim, so a changePriorityOfTaskType in between is not undone.
+    private void addWorkItemsWithIdsToReadyWorkItemIndex(List<Integer> workItemIds) {
+        synchronized (readyWorkItemIndexLock) {
+            if (readyWorkItemIndex == null) {
+                return;
+            }
+            for (int workItemId : workItemIds) {
+                String[] args = {workItemId+"", ""+WorkItemState.READY.value()};
+                Cursor cursor = getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, DEFAULT_ID_COLUMN + " == ? AND " + STATE_COLUMN + " == ?", args, null, null, null);
+                for (InternalWorkItem workItem : workItemsFromCursor(cursor)) {
+                    readyWorkItemIndex.add(workItem.getId(), workItem);
+                }
+                cursor.close();
+            }
+        }
+    }
+
+    // Blocks the work item on its open prerequisites. Must be called inside the transaction that wrote its row.
+    private void writeDependenciesOfWorkItem(SQLiteDatabase db, long workItemId, InternalWorkItem workItem, Map<InternalWorkItem, Long> insertedIds) {
+        boolean isBlocked = false;
+        for (InternalWorkItem prerequisite : workItem.getPrerequisites()) {
+            Long insertedId = (insertedIds != null) ? insertedIds.get(prerequisite) : null;
+            long prerequisiteId = (insertedId != null) ? insertedId : prerequisite.getId();
+
+            SQLiteStatement statement = compiledStatement(db, INSERT_DEPENDENCY_STATEMENT);
+            synchronized (statement) {
+                statement.clearBindings();
+                statement.bindLong(1, workItemId);
+                statement.bindLong(2, prerequisiteId);
+                if (statement.executeInsert() != -1) {
+                    isBlocked = true;
+                }
+            }
+        }
+
+        if (isBlocked && workItem.getState() == WorkItemState.READY) {
+            Object[] args = {WorkItemState.BLOCKED.value(), workItemId, WorkItemState.READY.value()};
+            executeUpdateStatement(db, CHANGE_STATE_STATEMENT, args);
+            workItem.setState(WorkItemState.BLOCKED);
+        }
+    }
+
+    // insertedIds maps the work items added earlier in the same batch to their id, -1 for the ones left out.
+    private boolean hasRemovedPrerequisite(SQLiteDatabase db, InternalWorkItem workItem, Map<InternalWorkItem, Long> insertedIds) {
+        for (InternalWorkItem prerequisite : workItem.getPrerequisites()) {
+            Long insertedId = (insertedIds != null) ? insertedIds.get(prerequisite) : null;
+            if (insertedId != null) {
+                if (insertedId == -1) {
+                    return true;
+                }
+                continue;
+            }
+
+            String[] args = {prerequisite.getId()+""};
+            Cursor cursor = db.rawQuery("select 1 from " + REMOVED_TABLE_NAME + " where " + DEFAULT_ID_COLUMN + " == ? limit 1", args);
+            boolean isRemoved = cursor.getCount() > 0;
+            cursor.close();
+            if (isRemoved) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The key to store with the work item, null if it has none or has prerequisites, which never coalesce.
+     */
+    private String coalescingKeyOfWorkItem(InternalWorkItem workItem) {
+        return (workItem.getPrerequisites().isEmpty()) ? workItem.getCoalescingKey() : null;
+    }
+
+    /**
+     * @return The id of the READY work item with the same coalescing key it was merged into, or -1 if it has to be inserted.
+     */
+    private long coalesceWorkItem(SQLiteDatabase db, InternalWorkItem workItem, List<String> payloadFileNames) {
+        String coalescingKey = coalescingKeyOfWorkItem(workItem);
+        if (coalescingKey == null || workItem.getTaskType() == null || workItem.getState() != WorkItemState.READY) {
+            return -1;
+        }
+
+        String[] args = {workItem.getTaskType(), coalescingKey};
+        Cursor cursor = db.rawQuery("select " + DEFAULT_ID_COLUMN + " from " + WORK_ITEM_TABLE_NAME + " where " + TASK_TYPE_COLUMN + " == ? and " + COALESCING_KEY_COLUMN + " == ?", args);
+        int existingId = (cursor.moveToFirst()) ? cursor.getInt(0) : -1;
+        cursor.close();
+        if (existingId == -1) {
+            return -1;
+        }
+
+        switch (workItem.getCoalescePolicy()) {
+            case REPLACE_PAYLOAD:
+                String[] idArgs = {existingId+""};
+                String oldPayloadFileName = payloadFileNameOfWorkItem(db, existingId);
+                db.delete(PAYLOAD_TABLE_NAME, WORK_ITEM_ID_COLUMN + " == ?", idArgs);
+                if (!writePayloadOfWorkItem(db, existingId, workItem)) {
+                    throw new SQLException("Could not replace the payload of work item " + existingId);
+                }
+                if (oldPayloadFileName != null) {
+                    payloadFileNames.add(oldPayloadFileName);
+                }
+                break;
+            case MAX_PRIORITY:
+                Object[] updateArgs = {workItem.getMajorPriority(), workItem.getMinorPriority(), existingId,
+                        workItem.getMajorPriority(), workItem.getMajorPriority(), workItem.getMinorPriority()};
+                executeUpdateStatement(db, RAISE_PRIORITY_STATEMENT, updateArgs);
+                break;
+            default:
+                break;
+        }
+        return existingId;
+    }
+
+    private boolean hasOpenPrerequisites(SQLiteDatabase db, int workItemId) {
+        String[] args = {workItemId+""};
+        Cursor cursor = db.rawQuery("select 1 from " + DEPENDENCY_TABLE_NAME + " where " + WORK_ITEM_ID_COLUMN + " == ? limit 1", args);
+        boolean hasOpenPrerequisites = cursor.getCount() > 0;
+        cursor.close();
+        return hasOpenPrerequisites;
+    }
+
+    private ArrayList<Integer> dependentIdsOfWorkItems(SQLiteDatabase db, List<Integer> workItemIds) {
+        LinkedHashSet<Integer> dependentIds = new LinkedHashSet<>();
+        for (int workItemId : workItemIds) {
+            String[] args = {workItemId+""};
+            Cursor cursor = db.rawQuery("select " + WORK_ITEM_ID_COLUMN + " from " + DEPENDENCY_TABLE_NAME + " where " + DEPENDS_ON_ID_COLUMN + " == ?", args);
+            while (cursor.moveToNext()) {
+                dependentIds.add(cursor.getInt(0));
+            }
+            cursor.close();
+        }
+        return new ArrayList<>(dependentIds);
+    }
+
+    // Dependents are always BLOCKED, so none of them are in the ready index. Payload files are only collected.
+    private void deleteWorkItemsAndTheirDependents(SQLiteDatabase db, List<Integer> workItemIds, List<String> payloadFileNames) {
+        if (workItemIds.isEmpty()) {
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            List<Integer> idsToDelete = workItemIds;
+            while (!idsToDelete.isEmpty()) {
+                for (int workItemId : idsToDelete) {
+                    // The payload row and the edges of the work item itself are removed by triggers.
+                    String[] args = {workItemId+""};
+                    String payloadFileName = payloadFileNameOfWorkItem(db, workItemId);
+                    if (db.delete(WORK_ITEM_TABLE_NAME, DEFAULT_ID_COLUMN + " == ?", args) != 1) {
+                        continue;
+                    }
+                    recordRemovedWorkItem(db, workItemId);
+                    if (payloadFileName != null) {
+                        payloadFileNames.add(payloadFileName);
+                    }
+                }
+                idsToDelete = dependentIdsOfWorkItems(db, idsToDelete);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void recordRemovedWorkItem(SQLiteDatabase db, int workItemId) {
+        Object[] args = {workItemId};
+        executeUpdateStatement(db, INSERT_REMOVED_STATEMENT, args);
+    }
+
+    private boolean changeStateOfWorkItem(SQLiteDatabase db, InternalWorkItem workItem, WorkItemState fromState, WorkItemState toState) {
+        Object[] args = {toState.value(), workItem.getId(), fromState.value()};
+        int numberOfRowsAffected = executeUpdateStatement(db, CHANGE_STATE_STATEMENT, args);
+        return (numberOfRowsAffected == 1) ? true : false;
+    }
+
+    /**
+     * @return The work items that were still in fromState and are now in toState. Must be called inside a transaction.
+     */
+    private ArrayList<InternalWorkItem> changeStateOfWorkItems(SQLiteDatabase db, List<InternalWorkItem> workItems, WorkItemState fromState, WorkItemState toState) {
+        ArrayList<InternalWorkItem> movedWorkItems = new ArrayList<>(workItems.size());
+        for (int start=0; start<workItems.size(); start+=MAX_IDS_PER_STATEMENT) {
+            List<InternalWorkItem> chunk = workItems.subList(start, Math.min(start + MAX_IDS_PER_STATEMENT, workItems.size()));
+            String[] args = new String[chunk.size() + 1];
+            args[0] = "" + fromState.value();
+            for (int i=0; i<chunk.size(); i++) {
+                args[i+1] = chunk.get(i).getId()+"";
+            }
+            HashSet<Integer> idsInFromState = new HashSet<>();
+            Cursor cursor = db.rawQuery("select " + DEFAULT_ID_COLUMN + " from " + WORK_ITEM_TABLE_NAME + " where " + STATE_COLUMN + " == ? AND " + DEFAULT_ID_COLUMN + " IN " + questionMarksForCount(chunk.size()), args);
+            while (cursor.moveToNext()) {
+                idsInFromState.add(cursor.getInt(0));
+            }
+            cursor.close();
+            if (idsInFromState.isEmpty()) {
+                continue;
+            }
+
+            // Usually every entry is current and the update reuses the same ids, stale ones are left out of it.
+            ArrayList<String> updateArgs = new ArrayList<>(idsInFromState.size() + 1);
+            updateArgs.add(args[0]);
+            for (InternalWorkItem workItem : chunk) {
+                if (idsInFromState.contains(workItem.getId())) {
+                    updateArgs.add(workItem.getId()+"");
+                    movedWorkItems.add(workItem);
+                }
+            }
+            String[] updateArgsArray = new String[updateArgs.size()];
+            updateArgs.toArray(updateArgsArray);
+
+            ContentValues values = new ContentValues();
+            values.put(STATE_COLUMN, toState.value());
+            db.update(WORK_ITEM_TABLE_NAME, values, STATE_COLUMN + " == ? AND " + DEFAULT_ID_COLUMN + " IN " + questionMarksForCount(idsInFromState.size()), updateArgsArray);
+        }
+        return movedWorkItems;
+    }
+
+    private boolean failWorkItem(InternalWorkItem workItem, WorkItemState toState) {
+        Object[] args = {toState.value(), workItem.getId(), WorkItemState.EXECUTING.value()};
+        int numberOfRowsAffected = executeUpdateStatement(getWritableDatabase(), FAIL_WORK_ITEM_STATEMENT, args);
+        return (numberOfRowsAffected == 1) ? true : false;
+    }
+
+    /**
+     * @return The number of rows affected, the statement is compiled once and reused.
+     */
+    private int executeUpdateStatement(SQLiteDatabase db, String sql, Object[] args) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            db.execSQL(sql, args);
+            Cursor cursor = db.rawQuery("select changes()", null);
+            cursor.moveToFirst();
+            int numberOfRowsAffected = cursor.getInt(0);
+            cursor.close();
+            return numberOfRowsAffected;
+        }
+
+        SQLiteStatement statement = compiledStatement(db, sql);
+        synchronized (statement) {
+            statement.clearBindings();
+            for (int i=0; i<args.length; i++) {
+                bindLongOrNull(statement, i+1, (Number) args[i]);
+            }
+            return executeUpdateDelete(statement);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int executeUpdateDelete(SQLiteStatement statement) {
+        return statement.executeUpdateDelete();
+    }
+
+    private SQLiteStatement compiledStatement(SQLiteDatabase db, String sql) {
+        synchronized (compiledStatements) {
+            SQLiteStatement statement = compiledStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                compiledStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private void bindLongOrNull(SQLiteStatement statement, int index, Number value) {
+        if (value != null) {
+            statement.bindLong(index, value.longValue());
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    private void bindWorkItemToInsertStatement(InternalWorkItem workItem, SQLiteStatement statement) {
+        statement.clearBindings();
+
+        bindStringOrNull(statement, 1, workItem.getTaskType());
+        statement.bindLong(2, workItem.getState().value());
+        statement.bindLong(3, workItem.getMajorPriority());
+        statement.bindLong(4, workItem.getMinorPriority());
+        statement.bindLong(5, workItem.getRetryCount());
+        statement.bindLong(6, workItem.getTimeCreated());
+        statement.bindLong(7, (workItem.isRequiresInternet()) ? 1 : 0);
+        statement.bindLong(8, workItem.getMaxRetries());
+        statement.bindLong(9, (workItem.isShouldHold()) ? 1 : 0);
+        statement.bindLong(10, workItem.getNotBefore());
+        statement.bindLong(11, workItem.getBackoffPolicy().type().value());
+        statement.bindLong(12, workItem.getBackoffPolicy().delayMillis());
+        statement.bindLong(13, workItem.getBackoffPolicy().maxDelayMillis());
+        bindStringOrNull(statement, 14, coalescingKeyOfWorkItem(workItem));
+    }
+
+    // Work items without a payload get no row. Must be called inside the transaction that wrote the work item row.
+    private boolean writePayloadOfWorkItem(SQLiteDatabase db, long workItemId, InternalWorkItem workItem) {
+        PayloadCodec payloadCodec = payloadCodecForWorkItem(workItem);
+        byte[] storedPayload = payloadCodec.encode(workItem.getPayload());
+        if (storedPayload == null) {
+            return true;
+        }
+        String payloadFileName = spillPayloadIfNeeded(storedPayload);
+
+        SQLiteStatement statement = compiledStatement(db, INSERT_PAYLOAD_STATEMENT);
+        synchronized (statement) {
+            statement.clearBindings();
+            statement.bindLong(1, workItemId);
+            if (payloadFileName == null) {
+                statement.bindBlob(2, storedPayload);
+            } else {
+                statement.bindNull(2);
+            }
+            statement.bindLong(3, payloadCodec.value());
+            bindStringOrNull(statement, 4, payloadFileName);
+            return statement.executeInsert() != -1;
+        }
+    }
+
+    private String payloadFileNameOfWorkItem(SQLiteDatabase db, int workItemId) {
+        String[] args = {workItemId+""};
+        Cursor cursor = db.rawQuery("select " + PAYLOAD_FILE_COLUMN + " from " + PAYLOAD_TABLE_NAME + " where " + WORK_ITEM_ID_COLUMN + " == ?", args);
+        String payloadFileName = (cursor.moveToFirst()) ? cursor.getString(0) : null;
+        cursor.close();
+        return payloadFileName;
+    }
+
+    /**
+     * @return The name of the file the stored payload was written to, or null if it belongs in the database.
+     */
+    private String spillPayloadIfNeeded(byte[] storedPayload) {
+        if (storedPayload == null || payloadSpillThreshold <= 0 || storedPayload.length <= payloadSpillThreshold) {
             return null;
+        }
+
+        try {
+            return payloadFileStore.write(storedPayload);
+        } catch (IOException exception) {
+            Log.e("TaskManager", "Could not write payload file, keeping the payload in the database " + exception.toString());
+            return null;
+        }
+    }
+
+    // Only call this once the references are committed, a rollback would bring back rows whose files are gone.
+    private void deletePayloadFilesIfUnreferenced(List<String> payloadFileNames) {
+        if (payloadFileNames.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        if (db.inTransaction()) {
+            return;
+        }
+
+        // Holding the write lock keeps an insert from referencing a file again between the check and the delete.
+        // The transaction changes nothing, so there is nothing for it to roll back.
+        db.beginTransaction();
+        try {
+            for (String payloadFileName : new LinkedHashSet<>(payloadFileNames)) {
+                String[] args = {payloadFileName};
+                Cursor cursor = db.rawQuery("select 1 from " + PAYLOAD_TABLE_NAME + " where " + PAYLOAD_FILE_COLUMN + " == ? limit 1", args);
+                boolean isReferenced = cursor.getCount() > 0;
+                cursor.close();
+
+                if (!isReferenced) {
+                    payloadFileStore.delete(payloadFileName);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private PayloadCodec payloadCodecForWorkItem(InternalWorkItem workItem) {
+        return (workItem.getPayloadCodec() != null) ? workItem.getPayloadCodec() : PayloadCodec.JSON;
+    }
+
+    private void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
         } else {
-            cursor.moveToFirst();
+            statement.bindNull(index);
         }
+    }
+
+    private ArrayList<InternalWorkItem> workItemsFromCursor(Cursor cursor) {
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            workItems.add(workItemFromCurrentCursorPosition(cursor));
+        }
+        return workItems;
+    }
 
+    private InternalWorkItem workItemFromCurrentCursorPosition(Cursor cursor) {
         boolean requiresInternet = (cursor.getInt(cursor.getColumnIndex(REQUIRES_INTERNET_COLUMN)) == 1) ? true : false;
         boolean shouldHold = (cursor.getInt(cursor.getColumnIndex(SHOULD_HOLD_COLUMN)) == 1) ? true : false;
 
@@ -258,11 +1425,16 @@ public class WorkItemDatabaseHelper extends SQLiteOpenHelper
         workItem.setId(cursor.getInt(cursor.getColumnIndex(DEFAULT_ID_COLUMN)));
         workItem.setTaskType(cursor.getString(cursor.getColumnIndex(TASK_TYPE_COLUMN)));
         workItem.setState(WorkItemState.valueOf(cursor.getInt(cursor.getColumnIndex(STATE_COLUMN))));
-        workItem.setData(cursor.getString(cursor.getColumnIndex(DATA_COLUMN)));
         workItem.setMajorPriority(cursor.getInt(cursor.getColumnIndex(MAJOR_PRIORITY_COLUMN)));
         workItem.setMinorPriority(cursor.getInt(cursor.getColumnIndex(MINOR_PRIORITY_COLUMN)));
         workItem.setRetryCount(cursor.getInt(cursor.getColumnIndex(RETRY_COUNT_COLUMN)));
         workItem.setTimeCreated(cursor.getInt(cursor.getColumnIndex(TIME_CREATED_COLUMN)));
+        workItem.setMaxRetries(cursor.getInt(cursor.getColumnIndex(MAX_RETRIES_COLUMN)));
+        workItem.setNotBefore(cursor.getLong(cursor.getColumnIndex(NOT_BEFORE_COLUMN)));
+        workItem.setBackoffPolicy(BackoffPolicy.fromStoredValues(cursor.getInt(cursor.getColumnIndex(BACKOFF_TYPE_COLUMN)),
+                cursor.getLong(cursor.getColumnIndex(BACKOFF_DELAY_COLUMN)),
+                cursor.getLong(cursor.getColumnIndex(BACKOFF_MAX_DELAY_COLUMN))));
+        workItem.setCoalescingKey(cursor.getString(cursor.getColumnIndex(COALESCING_KEY_COLUMN)));
 
         workItem.setRequiresInternet(requiresInternet);
         workItem.setShouldHold(shouldHold);
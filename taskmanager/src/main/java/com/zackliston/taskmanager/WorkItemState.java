@@ -6,7 +6,9 @@ package com.zackliston.taskmanager;
 public enum WorkItemState {
     READY(0),
     EXECUTING(1),
-    HOLDING(2);
+    HOLDING(2),
+    // Waiting for at least one prerequisite to complete.
+    BLOCKED(3);
 
     private final int value;
     WorkItemState(int value) {
@@ -23,6 +25,8 @@ public enum WorkItemState {
             return EXECUTING;
         } else if (i == 2) {
             return HOLDING;
+        } else if (i == 3) {
+            return BLOCKED;
         }
         return null;
     }
@@ -0,0 +1,86 @@
+package com.zackliston.taskmanager;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executors workers run on. Virtual threads are looked up by reflection, Android does not have them.
+ */
+final class WorkerExecutors
+{
+    //region Constants
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    //endregion
+
+    //region Initialize
+    private WorkerExecutors() {}
+    //endregion
+
+    //region Protected Methods
+    /**
+     * Without virtual threads the pool is capped at the default concurrency, numberOfThreads was meant for virtual threads.
+     */
+    static ExecutorService newWorkerExecutorService(int numberOfThreads, boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            ExecutorService virtualThreadExecutorService = newVirtualThreadPerTaskExecutor();
+            if (virtualThreadExecutorService != null) {
+                return virtualThreadExecutorService;
+            }
+            numberOfThreads = Math.min(numberOfThreads, TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS);
+            Log.e("TaskManager", "Virtual threads are not available on this runtime, using a pool of " + numberOfThreads + " threads.");
+        }
+        return newThreadPool(numberOfThreads);
+    }
+
+    /**
+     * @return The size of the pool, or numberOfWorkers if the executor starts a virtual thread for every worker.
+     */
+    static int maximumNumberOfWorkers(ExecutorService executorService, int numberOfWorkers) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executorService).getMaximumPoolSize();
+        }
+        return numberOfWorkers;
+    }
+
+    // Below its core size a pool starts a new thread for every worker, even with idle ones, so keep the core
+    // size at the concurrency limit with setNumberOfCoreThreads. Idle threads still time out.
+    static ExecutorService newThreadPool(int numberOfThreads) {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Does nothing for executors that are not a thread pool, such as the virtual thread one.
+     */
+    static void setNumberOfCoreThreads(ExecutorService executorService, int numberOfThreads) {
+        if (!(executorService instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executorService;
+        int corePoolSize = Math.max(1, Math.min(numberOfThreads, threadPoolExecutor.getMaximumPoolSize()));
+        if (threadPoolExecutor.getCorePoolSize() != corePoolSize) {
+            threadPoolExecutor.setCorePoolSize(corePoolSize);
+        }
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() on Java 21 and later, null on any other runtime.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception exception) {
+            return null;
+        }
+    }
+    //endregion
+}
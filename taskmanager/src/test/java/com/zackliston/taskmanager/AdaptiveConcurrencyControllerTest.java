@@ -0,0 +1,82 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveConcurrencyControllerTest {
+
+    @Test
+    public void testInitialLimitIsClamped() throws Exception {
+        assertThat(new AdaptiveConcurrencyController(1, 8, 4).getLimit(), is(4));
+        assertThat(new AdaptiveConcurrencyController(2, 8, 0).getLimit(), is(2));
+        assertThat(new AdaptiveConcurrencyController(1, 8, 20).getLimit(), is(8));
+        assertThat(new AdaptiveConcurrencyController(0, 0, 0).getLimit(), is(1));
+    }
+
+    @Test
+    public void testIncreasesWhileSaturatedWithStableLatency() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 8, 2);
+
+        long now = 0;
+        for (int i=0; i<50; i++) {
+            now += 10;
+            controller.onWorkerFinished(100, now, controller.getLimit());
+        }
+
+        assertThat(controller.getLimit(), is(8));
+    }
+
+    @Test
+    public void testDoesNotIncreaseWhenNotSaturated() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 8, 2);
+
+        long now = 0;
+        for (int i=0; i<20; i++) {
+            now += 100;
+            controller.onWorkerFinished(100, now, 1);
+        }
+
+        assertThat(controller.getLimit(), is(2));
+    }
+
+    @Test
+    public void testDecreasesWhenLatencyDegrades() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 8, 4);
+
+        long now = 0;
+        for (int i=0; i<4; i++) {
+            now += 25;
+            controller.onWorkerFinished(100, now, 4);
+        }
+        int limitAfterGoodWindow = controller.getLimit();
+
+        for (int i=0; i<limitAfterGoodWindow; i++) {
+            now += 25;
+            controller.onWorkerFinished(500, now, limitAfterGoodWindow);
+        }
+
+        assertThat(controller.getLimit(), is((int) (limitAfterGoodWindow * AdaptiveConcurrencyController.DECREASE_FACTOR)));
+    }
+
+    @Test
+    public void testNeverDropsBelowMinimum() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(2, 8, 2);
+
+        long now = 0;
+        long latency = 10;
+        for (int i=0; i<40; i++) {
+            now += latency;
+            latency *= 2;
+            controller.onWorkerFinished(latency, now, controller.getLimit());
+        }
+
+        assertThat(controller.getLimit(), is(2));
+    }
+}
@@ -0,0 +1,64 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class BackoffPolicyTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testNone() throws Exception {
+        assertThat(BackoffPolicy.none().delayBeforeRetry(1, random), is(0L));
+        assertThat(BackoffPolicy.none().delayBeforeRetry(10, random), is(0L));
+    }
+
+    @Test
+    public void testFixed() throws Exception {
+        BackoffPolicy backoffPolicy = BackoffPolicy.fixed(500);
+
+        assertThat(backoffPolicy.delayBeforeRetry(1, random), is(500L));
+        assertThat(backoffPolicy.delayBeforeRetry(7, random), is(500L));
+    }
+
+    @Test
+    public void testExponentialDoublesUpToMax() throws Exception {
+        BackoffPolicy backoffPolicy = BackoffPolicy.exponential(1000, 10000);
+
+        assertThat(backoffPolicy.delayBeforeRetry(1, random), is(1000L));
+        assertThat(backoffPolicy.delayBeforeRetry(2, random), is(2000L));
+        assertThat(backoffPolicy.delayBeforeRetry(4, random), is(8000L));
+        assertThat(backoffPolicy.delayBeforeRetry(5, random), is(10000L));
+        assertThat(backoffPolicy.delayBeforeRetry(Integer.MAX_VALUE, random), is(10000L));
+    }
+
+    @Test
+    public void testExponentialWithJitterStaysInRange() throws Exception {
+        BackoffPolicy backoffPolicy = BackoffPolicy.exponentialWithJitter(1000, 10000);
+
+        for (int i=0; i<100; i++) {
+            long delay = backoffPolicy.delayBeforeRetry(3, random);
+            assertThat("Between 0 and 4000", delay >= 0 && delay <= 4000);
+        }
+    }
+
+    @Test
+    public void testFromStoredValues() throws Exception {
+        BackoffPolicy backoffPolicy = BackoffPolicy.exponentialWithJitter(250, 5000);
+
+        BackoffPolicy restored = BackoffPolicy.fromStoredValues(backoffPolicy.type().value(), backoffPolicy.delayMillis(), backoffPolicy.maxDelayMillis());
+
+        assertThat(restored, is(backoffPolicy));
+        assertThat(BackoffPolicy.fromStoredValues(0, 0, 0), is(BackoffPolicy.NONE));
+        assertThat(BackoffPolicy.fromStoredValues(99, 10, 10), is(BackoffPolicy.NONE));
+    }
+}
@@ -0,0 +1,80 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class BatchTaskWorkerTest {
+
+    private InternalWorkItem first;
+    private InternalWorkItem second;
+    private BatchTaskWorker worker;
+    private TaskFinishedInterface mockDelegate;
+
+    @Before
+    public void setUp() {
+        first = new InternalWorkItem();
+        second = new InternalWorkItem();
+        worker = new BatchTaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+        worker.setupWithWorkItems(Arrays.asList(first, second));
+        mockDelegate = mock(TaskFinishedInterface.class);
+        worker.setTaskFinishedDelegate(mockDelegate);
+    }
+
+    @Test
+    public void testFinishesOnceEveryWorkItemIsReported() throws Exception {
+        worker.workItemFinishedWasSuccessful(first, false);
+        verify(mockDelegate, never()).taskWorkerFinishedSuccessfully(worker, true);
+
+        worker.workItemFinishedWasSuccessful(second, true);
+        verify(mockDelegate, times(1)).taskWorkerFinishedSuccessfully(worker, true);
+
+        assertThat(worker.wasWorkItemSuccessful(first), is(false));
+        assertThat(worker.wasWorkItemSuccessful(second), is(true));
+    }
+
+    @Test
+    public void testFinishingEarlyReportsTheRest() throws Exception {
+        worker.workItemFinishedWasSuccessful(first, true);
+        worker.taskFinishedWasSuccessful(false);
+
+        verify(mockDelegate, times(1)).taskWorkerFinishedSuccessfully(worker, false);
+        assertThat(worker.wasWorkItemSuccessful(first), is(true));
+        assertThat(worker.wasWorkItemSuccessful(second), is(false));
+    }
+
+    @Test
+    public void testReportsAfterFinishAreIgnored() throws Exception {
+        worker.taskFinishedWasSuccessful(true);
+        worker.workItemFinishedWasSuccessful(first, false);
+
+        verify(mockDelegate, times(1)).taskWorkerFinishedSuccessfully(worker, true);
+        assertThat(worker.wasWorkItemSuccessful(first), is(true));
+    }
+
+    @Test
+    public void testUnknownWorkItemIsIgnored() throws Exception {
+        worker.workItemFinishedWasSuccessful(new InternalWorkItem(), true);
+        worker.workItemFinishedWasSuccessful(first, true);
+
+        verify(mockDelegate, never()).taskWorkerFinishedSuccessfully(worker, true);
+    }
+}
@@ -0,0 +1,94 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class DeficitRoundRobinTest {
+
+    private DeficitRoundRobin scheduler;
+    private HashMap<String, Integer> weights;
+
+    @Before
+    public void setup() {
+        scheduler = new DeficitRoundRobin();
+        weights = new HashMap<>();
+        weights.put("bulk", 1);
+        weights.put("quick", 2);
+    }
+
+    @Test
+    public void testSlotsFollowWeightsInOnePass() throws Exception {
+        HashMap<String, Integer> allocation = scheduler.allocate(backlog(100, 100), weights, 6);
+
+        assertThat(allocation.get("bulk"), is(2));
+        assertThat(allocation.get("quick"), is(4));
+    }
+
+    @Test
+    public void testSlotsFollowWeightsAcrossPasses() throws Exception {
+        int bulk = 0;
+        int quick = 0;
+        for (int i=0; i<30; i++) {
+            HashMap<String, Integer> allocation = scheduler.allocate(backlog(100, 100), weights, 1);
+            bulk += (allocation.containsKey("bulk")) ? allocation.get("bulk") : 0;
+            quick += (allocation.containsKey("quick")) ? allocation.get("quick") : 0;
+        }
+
+        assertThat(bulk, is(10));
+        assertThat(quick, is(20));
+    }
+
+    @Test
+    public void testUnusedShareGoesToOtherTaskTypes() throws Exception {
+        HashMap<String, Integer> allocation = scheduler.allocate(backlog(100, 1), weights, 4);
+
+        assertThat(allocation.get("quick"), is(1));
+        assertThat(allocation.get("bulk"), is(3));
+    }
+
+    @Test
+    public void testIdleTaskTypeDoesNotKeepCredit() throws Exception {
+        HashMap<String, Integer> allocation = scheduler.allocate(backlog(0, 5), weights, 1);
+        assertThat(allocation.get("quick"), is(1));
+        assertThat(allocation.get("bulk"), nullValue());
+
+        // quick had credit left over, but it went idle in between so it starts over.
+        scheduler.allocate(backlog(5, 0), weights, 1);
+        allocation = scheduler.allocate(backlog(5, 5), weights, 3);
+        assertThat(allocation.get("bulk"), is(1));
+        assertThat(allocation.get("quick"), is(2));
+    }
+
+    @Test
+    public void testRefundKeepsCredit() throws Exception {
+        HashMap<String, Integer> allocation = scheduler.allocate(backlog(100, 100), weights, 3);
+        assertThat(allocation.get("bulk"), is(1));
+        assertThat(allocation.get("quick"), is(2));
+
+        // bulk could not claim its work item, so it is owed one on top of its next turn.
+        scheduler.refund("bulk", 1);
+        allocation = scheduler.allocate(backlog(100, 100), weights, 4);
+        assertThat(allocation.get("bulk"), is(2));
+        assertThat(allocation.get("quick"), is(2));
+    }
+
+    //region Helpers
+    private static HashMap<String, Integer> backlog(int bulk, int quick) {
+        HashMap<String, Integer> backlog = new HashMap<>();
+        backlog.put("bulk", bulk);
+        backlog.put("quick", quick);
+        return backlog;
+    }
+    //endregion
+}
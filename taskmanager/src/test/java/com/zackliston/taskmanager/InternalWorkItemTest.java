@@ -57,4 +57,33 @@ public class InternalWorkItemTest {
         assertThat(returnedObject.toString(), is(data));
 
     }
+
+    @Test
+    public void testSetDataIsJsonPayload() throws Exception {
+        String data = "{\"key\":\"value1\"}";
+        workItem.setData(data);
+
+        assertThat(workItem.getPayloadCodec(), is(PayloadCodec.JSON));
+        assertThat(workItem.getPayload(), is(data.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testSetPayload() throws Exception {
+        byte[] payload = {4, 8, 15, 16, 23, 42};
+        workItem.setPayload(payload, PayloadCodec.RAW);
+
+        assertThat(workItem.getPayload(), is(payload));
+        assertThat(workItem.getPayloadCodec(), is(PayloadCodec.RAW));
+        assertThat(workItem.getData(), is((String) null));
+        assertThat(workItem.getJsonData(), is((JSONObject) null));
+    }
+
+    @Test
+    public void testSetPayloadJsonCodec() throws Exception {
+        String data = "{\"key\":\"value1\"}";
+        workItem.setPayload(data.getBytes("UTF-8"), PayloadCodec.JSON);
+
+        assertThat(workItem.getData(), is(data));
+        assertThat(workItem.getJsonData().toString(), is(data));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+package com.zackliston.taskmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class ReadyWorkItemIndexTest {
+
+    private ReadyWorkItemIndex index;
+
+    @Before
+    public void setup() {
+        index = new ReadyWorkItemIndex();
+    }
+
+    @After
+    public void tearDown() {
+        index = null;
+    }
+
+    @Test
+    public void testNextWorkItemsInDispatchOrder() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeA", 5, 0, 0, 0, false));
+        index.add(3, workItem("typeA", 5, 9, 0, 0, false));
+        index.add(4, workItem("typeA", 5, 9, 1, 0, false));
+        index.add(5, workItem("typeA", 5, 9, 0, 100, false));
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA"), false, 10);
+        assertThat(workItems.size(), is(5));
+        assertThat(workItems.get(0).getId(), is(5));
+        assertThat(workItems.get(1).getId(), is(3));
+        assertThat(workItems.get(2).getId(), is(4));
+        assertThat(workItems.get(3).getId(), is(2));
+        assertThat(workItems.get(4).getId(), is(1));
+        assertThat(workItems.get(0).getState(), is(WorkItemState.READY));
+    }
+
+    @Test
+    public void testNextWorkItemsMergesTaskTypes() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeB", 3, 0, 0, 0, false));
+        index.add(3, workItem("typeA", 2, 0, 0, 0, false));
+        index.add(4, workItem("typeC", 9, 0, 0, 0, false));
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA", "typeB"), false, 2);
+        assertThat(workItems.size(), is(2));
+        assertThat(workItems.get(0).getId(), is(2));
+        assertThat(workItems.get(1).getId(), is(3));
+    }
+
+    @Test
+    public void testNextWorkItemsRespectsLimitByTaskType() throws Exception {
+        index.add(1, workItem("typeA", 9, 0, 0, 0, false));
+        index.add(2, workItem("typeA", 8, 0, 0, 0, true));
+        index.add(3, workItem("typeA", 7, 0, 0, 0, false));
+        index.add(4, workItem("typeB", 1, 0, 0, 0, false));
+        index.add(5, workItem("typeB", 0, 0, 0, 0, false));
+
+        HashMap<String, Integer> limitByTaskType = new HashMap<>();
+        limitByTaskType.put("typeA", 1);
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA", "typeB"), limitByTaskType, true, 4);
+        assertThat(workItems.size(), is(3));
+        assertThat(workItems.get(0).getId(), is(1));
+        assertThat(workItems.get(1).getId(), is(4));
+        assertThat(workItems.get(2).getId(), is(5));
+    }
+
+    @Test
+    public void testNextWorkItemsRespectsInternet() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeA", 5, 0, 0, 0, true));
+
+        assertThat(index.nextWorkItems(types("typeA"), false, 1).get(0).getId(), is(1));
+        assertThat(index.nextWorkItems(types("typeA"), true, 1).get(0).getId(), is(2));
+    }
+
+    @Test
+    public void testCountByTaskType() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeA", 1, 0, 0, 0, true));
+        index.add(3, workItem("typeB", 1, 0, 0, 0, true));
+
+        HashMap<String, Integer> counts = index.countByTaskType(types("typeA", "typeB", "typeC"), false);
+        assertThat(counts.size(), is(1));
+        assertThat(counts.get("typeA"), is(1));
+
+        counts = index.countByTaskType(types("typeA", "typeB", "typeC"), true);
+        assertThat(counts.size(), is(2));
+        assertThat(counts.get("typeA"), is(2));
+        assertThat(counts.get("typeB"), is(1));
+    }
+
+    @Test
+    public void testPriorityAging() throws Exception {
+        long now = 1000000;
+        index = new ReadyWorkItemIndex(10, now);
+
+        // Waited two minutes at priority 1, so it now ranks like priority 21.
+        index.add(1, workItem("typeA", 1, 0, 0, (int) now - 2 * 60 * 1000, false), now);
+        index.add(2, workItem("typeA", 15, 0, 0, (int) now, false), now);
+        index.add(3, workItem("typeA", 25, 0, 0, (int) now, false), now);
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA"), false, 3);
+        assertThat(workItems.get(0).getId(), is(3));
+        assertThat(workItems.get(1).getId(), is(1));
+        assertThat(workItems.get(2).getId(), is(2));
+        assertThat(workItems.get(1).getMajorPriority(), is(1));
+    }
+
+    @Test
+    public void testPriorityAgingAcrossTimeCreatedWrap() throws Exception {
+        long now = 0x80000000L + 1000;
+        index = new ReadyWorkItemIndex(10, now);
+
+        index.add(1, workItem("typeA", 1, 0, 0, (int) (now - 2 * 60 * 1000), false), now);
+        index.add(2, workItem("typeA", 15, 0, 0, (int) now, false), now);
+
+        assertThat(index.nextWorkItems(types("typeA"), false, 1).get(0).getId(), is(1));
+    }
+
+    @Test
+    public void testPriorityAgingOfWorkItemOlderThanIntRange() throws Exception {
+        long now = 1500000000000L;
+        index = new ReadyWorkItemIndex(1, now);
+
+        // Waited 30 days, longer than 2^31 ms, so it ranks far above a fresh work item.
+        long thirtyDays = 30L * 24 * 60 * 60 * 1000;
+        index.add(1, workItem("typeA", 1, 0, 0, (int) (now - thirtyDays), false), now);
+        index.add(2, workItem("typeA", 100, 0, 0, (int) now, false), now);
+
+        assertThat(index.nextWorkItems(types("typeA"), false, 1).get(0).getId(), is(1));
+    }
+
+    @Test
+    public void testPriorityAgingInIndexLoadedForWeeks() throws Exception {
+        long anchor = 1500000000000L;
+        index = new ReadyWorkItemIndex(10, anchor);
+        index.add(1, workItem("typeA", 15, 0, 0, (int) anchor, false), anchor);
+
+        // Added 30 days after the index was loaded. The first work item has waited all of that time, the second
+        // only two minutes, which lifts it from priority 1 to 21 but not past 25.
+        long now = anchor + 30L * 24 * 60 * 60 * 1000;
+        index.add(2, workItem("typeA", 1, 0, 0, (int) (now - 2 * 60 * 1000), false), now);
+        index.add(3, workItem("typeA", 25, 0, 0, (int) now, false), now);
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA"), false, 3);
+        assertThat(workItems.get(0).getId(), is(1));
+        assertThat(workItems.get(1).getId(), is(3));
+        assertThat(workItems.get(2).getId(), is(2));
+    }
+
+    @Test
+    public void testDeferredEntriesWaitUntilDue() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, deferredWorkItem("typeA", 9, 2000));
+        index.add(3, deferredWorkItem("typeA", 5, 1000));
+
+        index.promoteDueEntries(500);
+        assertThat(index.nextWorkItems(types("typeA"), false, 3).size(), is(1));
+        assertThat(index.earliestNotBefore(), is(1000L));
+        assertThat(index.size(), is(3));
+
+        index.promoteDueEntries(1000);
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA"), false, 3);
+        assertThat(workItems.size(), is(2));
+        assertThat(workItems.get(0).getId(), is(3));
+        assertThat(workItems.get(0).getNotBefore(), is(1000L));
+        assertThat(index.earliestNotBefore(), is(2000L));
+
+        index.promoteDueEntries(5000);
+        assertThat(index.nextWorkItems(types("typeA"), false, 3).get(0).getId(), is(2));
+        assertThat(index.earliestNotBefore(), is(0L));
+    }
+
+    @Test
+    public void testRemoveDeferredEntries() throws Exception {
+        index.add(1, deferredWorkItem("typeA", 1, 1000));
+        index.add(2, deferredWorkItem("typeB", 1, 2000));
+        index.add(3, deferredWorkItem("typeB", 1, 3000));
+
+        index.remove(1);
+        assertThat(index.earliestNotBefore(), is(2000L));
+
+        index.changePriorityOfTaskType("typeB", 7);
+        assertThat(index.size(), is(2));
+        assertThat(index.earliestNotBefore(), is(2000L));
+
+        index.removeTaskType("typeB");
+        assertThat(index.size(), is(0));
+        assertThat(index.earliestNotBefore(), is(0L));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeB", 1, 0, 0, 0, false));
+        index.add(3, workItem("typeB", 2, 0, 0, 0, true));
+
+        index.remove(1);
+        assertThat(index.size(), is(2));
+        assertThat(index.nextWorkItems(types("typeA"), true, 1).size(), is(0));
+
+        index.removeTaskType("typeB");
+        assertThat(index.size(), is(0));
+        assertThat(index.nextWorkItems(types("typeB"), true, 1).size(), is(0));
+    }
+
+    @Test
+    public void testAddReplacesExistingEntry() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeA", 2, 0, 0, 0, false));
+        index.add(1, workItem("typeA", 3, 0, 0, 0, false));
+
+        assertThat(index.size(), is(2));
+        assertThat(index.nextWorkItems(types("typeA"), false, 1).get(0).getId(), is(1));
+    }
+
+    @Test
+    public void testChangePriorityOfTaskType() throws Exception {
+        index.add(1, workItem("typeA", 1, 0, 0, 0, false));
+        index.add(2, workItem("typeB", 5, 0, 0, 0, false));
+
+        index.changePriorityOfTaskType("typeA", 10);
+
+        ArrayList<InternalWorkItem> workItems = index.nextWorkItems(types("typeA", "typeB"), false, 2);
+        assertThat(workItems.get(0).getId(), is(1));
+        assertThat(workItems.get(0).getMajorPriority(), is(10));
+        assertThat(index.size(), is(2));
+    }
+
+    //region Helpers
+    private static InternalWorkItem workItem(String taskType, int majorPriority, int minorPriority, int retryCount, int timeCreated, boolean requiresInternet) {
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(taskType);
+        workItem.setState(WorkItemState.READY);
+        workItem.setMajorPriority(majorPriority);
+        workItem.setMinorPriority(minorPriority);
+        workItem.setRetryCount(retryCount);
+        workItem.setTimeCreated(timeCreated);
+        workItem.setRequiresInternet(requiresInternet);
+        return workItem;
+    }
+
+    private static InternalWorkItem deferredWorkItem(String taskType, int majorPriority, long notBefore) {
+        InternalWorkItem workItem = workItem(taskType, majorPriority, 0, 0, 0, false);
+        workItem.setNotBefore(notBefore);
+        return workItem;
+    }
+
+    private static HashSet<String> types(String... taskTypes) {
+        HashSet<String> types = new HashSet<>();
+        for (String taskType : taskTypes) {
+            types.add(taskType);
+        }
+        return types;
+    }
+    //endregion
+}
@@ -14,17 +14,25 @@ import org.junit.runner.RunWith;
 import org.junit.runners.model.RunnerBuilder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import android.net.NetworkInfo;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.any;
@@ -61,63 +69,122 @@ public class TaskManagerTest {
         assertThat(taskManager.executorService, notNullValue());
         assertThat(taskManager.backgroundService, notNullValue());
         assertThat(taskManager.mainHandler, notNullValue());
+        assertThat(taskManager.dispatchHandler, notNullValue());
+        assertThat("Dispatcher is running", taskManager.dispatcherThread.isAlive());
         assertThat(taskManager.connectivityManager, notNullValue());
 
         assertThat("Is running", taskManager.isRunning);
         assertThat("Is not waiting", taskManager.isWaitingForStopCompletion == false);
         assertThat(taskManager.registeredManagers, notNullValue());
     }
+
+    @Test
+    public void testInitializeWithConfiguration() throws Exception {
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setUseWriteAheadLogging(true);
+
+        TaskManager configuredTaskManager = new TaskManager(Robolectric.application, configuration);
+
+        assertThat(configuredTaskManager.workItemDatabaseHelper, notNullValue());
+        assertThat(configuredTaskManager.executorService, notNullValue());
+        assertThat(configuredTaskManager.workItemDatabaseHelper.getWritableDatabase().isWriteAheadLoggingEnabled(), is(true));
+    }
+
+    @Test
+    public void testInitializeWithMaxConcurrentOperations() throws Exception {
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setMaxConcurrentOperations(32);
+
+        TaskManager configuredTaskManager = new TaskManager(Robolectric.application, configuration);
+
+        assertThat(configuredTaskManager.maxConcurrentOperations, is(32));
+        assertThat(configuredTaskManager.concurrencyLimit(), is(32));
+        assertThat("No adaptive controller", configuredTaskManager.concurrencyController == null);
+    }
+
+    @Test
+    public void testInitializeWithWeightedFairScheduling() throws Exception {
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setUseWeightedFairScheduling(true);
+
+        TaskManager configuredTaskManager = new TaskManager(Robolectric.application, configuration);
+
+        assertThat(configuredTaskManager.fairScheduler, notNullValue());
+        assertThat("Strict priority by default", taskManager.fairScheduler == null);
+    }
+
+    @Test
+    public void testInitializeWithAdaptiveConcurrency() throws Exception {
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setMaxConcurrentOperations(32);
+        configuration.setUseAdaptiveConcurrency(true);
+
+        TaskManager configuredTaskManager = new TaskManager(Robolectric.application, configuration);
+
+        assertThat(configuredTaskManager.concurrencyController, notNullValue());
+        assertThat(configuredTaskManager.concurrencyLimit(), is(TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS));
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) configuredTaskManager.executorService;
+        assertThat(threadPoolExecutor.getMaximumPoolSize(), is(32));
+        assertThat(threadPoolExecutor.getCorePoolSize(), is(TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS));
+    }
+
+    @Test
+    public void testInitializeWithVirtualThreads() throws Exception {
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setMaxConcurrentOperations(256);
+        configuration.setUseVirtualThreads(true);
+
+        TaskManager configuredTaskManager = new TaskManager(Robolectric.application, configuration);
+
+        if (WorkerExecutors.newVirtualThreadPerTaskExecutor() != null) {
+            assertThat(configuredTaskManager.useVirtualThreads, is(true));
+            assertThat(configuredTaskManager.executorService instanceof ThreadPoolExecutor, is(false));
+            assertThat(configuredTaskManager.concurrencyLimit(), is(256));
+        } else {
+            // Falls back to a thread pool capped at the default, not one of 256 platform threads.
+            assertThat(configuredTaskManager.useVirtualThreads, is(false));
+            assertThat(((ThreadPoolExecutor) configuredTaskManager.executorService).getMaximumPoolSize(), is(TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS));
+            assertThat(configuredTaskManager.concurrencyLimit(), is(TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS));
+        }
+    }
     //endregion
 
     //region Test Getters/Setters
     @Test
     public void testSetIsWaitingForStopCompletionIsNotWaitingIsRunning() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
 
         mockTaskManager.isRunning = true;
 
-        ArgumentCaptor runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
-        ExecutorService mockService = mock(ExecutorService.class);
-        mockTaskManager.backgroundService = mockService;
-
         mockTaskManager.setIsWaitingForStopCompletion(false);
         assertThat("Is not waiting", mockTaskManager.isWaitingForStopCompletion == false);
 
-        verify(mockService).execute((Runnable) runnableCaptor.capture());
-        Runnable runnable = (Runnable) runnableCaptor.getValue();
-        runnable.run();
-
-        verify(mockTaskManager).scheduleMoreWork();
+        verify(mockTaskManager).postScheduleMoreWork();
     }
 
     @Test
     public void testSetIsWaitingForStopCompletionIsWaiting() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isRunning = true;
 
-        ArgumentCaptor runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
-        ExecutorService mockService = mock(ExecutorService.class);
-        mockTaskManager.backgroundService = mockService;
-
         mockTaskManager.setIsWaitingForStopCompletion(true);
         assertThat("Is Waiting", mockTaskManager.isWaitingForStopCompletion);
 
-        verify(mockService, never()).execute((Runnable) runnableCaptor.capture());
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testSetIsWaitingForStopCompletionIsNoWaitingIsNotRunning() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isRunning = false;
 
-        ArgumentCaptor runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
-        ExecutorService mockService = mock(ExecutorService.class);
-        mockTaskManager.backgroundService = mockService;
-
         mockTaskManager.setIsWaitingForStopCompletion(false);
         assertThat("Is not waiting", mockTaskManager.isWaitingForStopCompletion == false);
 
-        verify(mockService, never()).execute((Runnable) runnableCaptor.capture());
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     //endregion
@@ -163,6 +230,7 @@ public class TaskManagerTest {
     @Test
     public void testStopAndWait() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
 
         mockTaskManager.isRunning = true;
         mockTaskManager.isWaitingForStopCompletion = false;
@@ -183,23 +251,14 @@ public class TaskManagerTest {
     @Test
     public void testResume() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
 
         mockTaskManager.isRunning = false;
 
-        ExecutorService mockBackground = mock(ExecutorService.class);
-        mockTaskManager.backgroundService = mockBackground;
-        ArgumentCaptor runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
-
         mockTaskManager.resume();
 
         assertThat("Is running", mockTaskManager.isRunning);
-        verify(mockBackground).execute((Runnable) runnableCaptor.capture());
-        Runnable waitRunnable = (Runnable) runnableCaptor.getValue();
-
-        verify(mockTaskManager, never()).scheduleMoreWork();
-
-        waitRunnable.run();
-        verify(mockTaskManager).scheduleMoreWork();
+        verify(mockTaskManager).postScheduleMoreWork();
     }
     //endregion
 
@@ -207,6 +266,7 @@ public class TaskManagerTest {
     @Test
     public void testQueueTaskSuccess() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -228,13 +288,15 @@ public class TaskManagerTest {
         task.setRequiresInternet(requiresInternet);
         task.setMaxRetries(maxRetryCount);
         task.setShouldHoldAfterMaxRetries(shouldHold);
+        task.setCoalescingKey("refresh");
+        task.setCoalescePolicy(CoalescePolicy.MAX_PRIORITY);
 
         boolean success = mockTaskManager.queueTask(task);
 
         assertThat(success, is(true));
 
         verify(mockDb).addNewWorkItem((InternalWorkItem) workItemCaptor.capture());
-        verify(mockTaskManager).scheduleMoreWork();
+        verify(mockTaskManager).postScheduleMoreWork();
 
         InternalWorkItem workItem = (InternalWorkItem) workItemCaptor.getValue();
         assertThat(workItem.getTaskType(), is(taskType));
@@ -246,6 +308,8 @@ public class TaskManagerTest {
         assertThat(workItem.isRequiresInternet(), is(requiresInternet));
         assertThat(workItem.getMaxRetries(), is(maxRetryCount));
         assertThat(workItem.isShouldHold(), is(shouldHold));
+        assertThat(workItem.getCoalescingKey(), is("refresh"));
+        assertThat(workItem.getCoalescePolicy(), is(CoalescePolicy.MAX_PRIORITY));
 
         long milliseconds = System.currentTimeMillis();
         int timeDifference = (int) milliseconds - workItem.getTimeCreated();
@@ -256,6 +320,7 @@ public class TaskManagerTest {
     @Test
     public void testQueueTaskFailure() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -283,7 +348,7 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb).addNewWorkItem((InternalWorkItem) workItemCaptor.capture());
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockTaskManager, never()).postScheduleMoreWork();
 
         InternalWorkItem workItem = (InternalWorkItem) workItemCaptor.getValue();
         assertThat(workItem.getTaskType(), is(taskType));
@@ -305,6 +370,7 @@ public class TaskManagerTest {
     @Test
     public void testQueueTaskIsWaiting() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = true;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -317,12 +383,13 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testQueueTaskNoTaskType() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = false;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -335,12 +402,13 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testQueueTaskEmptyTaskType() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = false;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -353,18 +421,19 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testQueueTaskArraySuccess() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
-        when(mockDb.addNewWorkItem(Matchers.any(InternalWorkItem.class))).thenReturn(true);
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(true);
 
-        ArgumentCaptor workItemCaptor1 = ArgumentCaptor.forClass(InternalWorkItem.class);
+        ArgumentCaptor workItemsCaptor = ArgumentCaptor.forClass(List.class);
 
         String taskType1 = "taskT";
         int major1 = 32;
@@ -404,10 +473,12 @@ public class TaskManagerTest {
 
         assertThat(success, is(true));
 
-        verify(mockDb, times(2)).addNewWorkItem((InternalWorkItem) workItemCaptor1.capture());
-        verify(mockTaskManager).scheduleMoreWork();
+        verify(mockDb).addNewWorkItems((List<InternalWorkItem>) workItemsCaptor.capture());
+        verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
+        verify(mockTaskManager).postScheduleMoreWork();
 
-        List<InternalWorkItem> workItems = workItemCaptor1.getAllValues();
+        List<InternalWorkItem> workItems = (List<InternalWorkItem>) workItemsCaptor.getValue();
+        assertThat(workItems.size(), is(2));
 
         InternalWorkItem workItem1 = workItems.get(0);
         assertThat(workItem1.getTaskType(), is(taskType1));
@@ -443,12 +514,13 @@ public class TaskManagerTest {
     @Test
     public void testQueueTaskArrayFailure() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
-        when(mockDb.addNewWorkItem(Matchers.any(InternalWorkItem.class))).thenReturn(false);
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(false);
 
-        ArgumentCaptor workItemCaptor1 = ArgumentCaptor.forClass(InternalWorkItem.class);
+        ArgumentCaptor workItemsCaptor = ArgumentCaptor.forClass(List.class);
 
         String taskType1 = "taskT";
         int major1 = 32;
@@ -488,10 +560,11 @@ public class TaskManagerTest {
 
         assertThat(success, is(false));
 
-        verify(mockDb, times(2)).addNewWorkItem((InternalWorkItem) workItemCaptor1.capture());
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockDb).addNewWorkItems((List<InternalWorkItem>) workItemsCaptor.capture());
+        verify(mockTaskManager, never()).postScheduleMoreWork();
 
-        List<InternalWorkItem> workItems = workItemCaptor1.getAllValues();
+        List<InternalWorkItem> workItems = (List<InternalWorkItem>) workItemsCaptor.getValue();
+        assertThat(workItems.size(), is(2));
 
         InternalWorkItem workItem1 = workItems.get(0);
         assertThat(workItem1.getTaskType(), is(taskType1));
@@ -527,6 +600,7 @@ public class TaskManagerTest {
     @Test
     public void testQueueTaskArrayIsWaiting() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = true;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -544,12 +618,14 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockDb, never()).addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class));
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testQueueTaskArrayNoTaskType() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = false;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -567,12 +643,14 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockDb, never()).addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class));
+        verify(mockTaskManager, never()).postScheduleMoreWork();
     }
 
     @Test
     public void testQueueTaskArrayEmptyTaskType() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.isWaitingForStopCompletion = false;
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
@@ -590,7 +668,143 @@ public class TaskManagerTest {
         assertThat(success, is(false));
 
         verify(mockDb, never()).addNewWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockTaskManager, never()).scheduleMoreWork();
+        verify(mockDb, never()).addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class));
+        verify(mockTaskManager, never()).postScheduleMoreWork();
+    }
+
+    @Test
+    public void testQueueTasksReturnsAcceptedTasks() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(true);
+
+        Task validTask = new Task("taskT", null);
+        Task invalidTask = new Task("", null);
+
+        ArrayList<Task> taskArray = new ArrayList<>(2);
+        taskArray.add(validTask);
+        taskArray.add(invalidTask);
+
+        List<Task> acceptedTasks = mockTaskManager.queueTasks(taskArray);
+
+        assertThat(acceptedTasks.size(), is(1));
+        assertThat(acceptedTasks.get(0), is(validTask));
+        verify(mockTaskManager).postScheduleMoreWork();
+    }
+
+    @Test
+    public void testQueueTasksDatabaseFailureAcceptsNone() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(false);
+
+        ArrayList<Task> taskArray = new ArrayList<>(2);
+        taskArray.add(new Task("taskT", null));
+        taskArray.add(new Task("taskT", null));
+
+        List<Task> acceptedTasks = mockTaskManager.queueTasks(taskArray);
+
+        assertThat(acceptedTasks.size(), is(0));
+        verify(mockTaskManager, never()).postScheduleMoreWork();
+    }
+
+    @Test
+    public void testQueueTasksWithPrerequisites() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(true);
+        ArgumentCaptor workItemsCaptor = ArgumentCaptor.forClass(List.class);
+
+        Task upload = new Task("upload", null);
+        Task register = new Task("register", null);
+        register.addPrerequisite(upload);
+        Task neverQueued = new Task("other", null);
+        Task orphan = new Task("notify", null);
+        orphan.addPrerequisite(neverQueued);
+
+        ArrayList<Task> taskArray = new ArrayList<>(3);
+        taskArray.add(upload);
+        taskArray.add(register);
+        taskArray.add(orphan);
+
+        List<Task> acceptedTasks = mockTaskManager.queueTasks(taskArray);
+
+        assertThat(acceptedTasks.size(), is(2));
+        assertThat(acceptedTasks.get(0), is(upload));
+        assertThat(acceptedTasks.get(1), is(register));
+
+        verify(mockDb).addNewWorkItems((List<InternalWorkItem>) workItemsCaptor.capture());
+        List<InternalWorkItem> workItems = (List<InternalWorkItem>) workItemsCaptor.getValue();
+        assertThat(workItems.size(), is(2));
+        assertThat(workItems.get(0).getPrerequisites().size(), is(0));
+        assertThat(workItems.get(1).getPrerequisites().size(), is(1));
+        assertThat(workItems.get(1).getPrerequisites().get(0), is(workItems.get(0)));
+    }
+
+    @Test
+    public void testQueueTasksLeavesOutTasksDroppedByDatabase() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+
+        // The second task's prerequisite was removed before it was queued.
+        when(mockDb.addNewWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                List<InternalWorkItem> workItems = (List<InternalWorkItem>) invocation.getArguments()[0];
+                workItems.get(0).setId(7);
+                workItems.get(1).setId(-1);
+                return true;
+            }
+        });
+
+        Task removedPrerequisite = new Task("upload", null);
+        removedPrerequisite.setWorkItemId(3);
+        Task task = new Task("register", null);
+        Task dependent = new Task("register", null);
+        dependent.addPrerequisite(removedPrerequisite);
+
+        List<Task> acceptedTasks = mockTaskManager.queueTasks(Arrays.asList(task, dependent));
+
+        assertThat(acceptedTasks.size(), is(1));
+        assertThat(acceptedTasks.get(0), is(task));
+        assertThat(task.getWorkItemId(), is(7));
+        assertThat(dependent.getWorkItemId(), is(0));
+    }
+
+    @Test
+    public void testQueueTaskWithQueuedPrerequisite() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+
+        when(mockDb.addNewWorkItem(Matchers.any(InternalWorkItem.class))).thenReturn(true);
+        ArgumentCaptor workItemCaptor = ArgumentCaptor.forClass(InternalWorkItem.class);
+
+        Task prerequisite = new Task("upload", null);
+        Task task = new Task("register", null);
+        task.addPrerequisite(prerequisite);
+
+        assertThat("Prerequisite was never queued", mockTaskManager.queueTask(task), is(false));
+
+        prerequisite.setWorkItemId(42);
+        assertThat(mockTaskManager.queueTask(task), is(true));
+
+        verify(mockDb).addNewWorkItem((InternalWorkItem) workItemCaptor.capture());
+        InternalWorkItem workItem = (InternalWorkItem) workItemCaptor.getValue();
+        assertThat(workItem.getPrerequisites().size(), is(1));
+        assertThat(workItem.getPrerequisites().get(0).getId(), is(42));
     }
 
     //endregion
@@ -652,18 +866,23 @@ public class TaskManagerTest {
 
     @Test
     public void testRestartHoldingTasks() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
-        taskManager.workItemDatabaseHelper=mockDb;
+        mockTaskManager.workItemDatabaseHelper=mockDb;
 
-        taskManager.restartHoldingTasks();
+        mockTaskManager.restartHoldingTasks();
 
         verify(mockDb).restartHoldingTasks();
+        verify(mockTaskManager).postScheduleMoreWork();
     }
     //endregion
 
     //region Test Manager Registration
     @Test
     public void testRegisterManagerSuccess() throws Exception {
+        TaskManager spyTaskManager = spy(taskManager);
+        doNothing().when(spyTaskManager).postScheduleMoreWork();
         String taskType = "taskTypeValue";
         Manager manager = new Manager() {
             @Override
@@ -672,19 +891,22 @@ public class TaskManagerTest {
             }
         };
 
-        assertThat(taskManager.registeredManagers.size(), is(0));
+        assertThat(spyTaskManager.registeredManagers.size(), is(0));
 
-        taskManager.registerManagerForTaskType(manager, taskType);
+        spyTaskManager.registerManagerForTaskType(manager, taskType);
 
-        assertThat(taskManager.registeredManagers.size(), is(1));
+        assertThat(spyTaskManager.registeredManagers.size(), is(1));
 
-        Manager managerForTaskType = taskManager.registeredManagers.get(taskType);
+        Manager managerForTaskType = spyTaskManager.registeredManagers.get(taskType);
         assertThat(managerForTaskType, is(manager));
+        verify(spyTaskManager).postScheduleMoreWork();
 
     }
 
     @Test(expected = UnsupportedOperationException.class)
     public void testRegisterManagerExistingManagerForType() throws Exception {
+        TaskManager spyTaskManager = spy(taskManager);
+        doNothing().when(spyTaskManager).postScheduleMoreWork();
         String taskType = "taskTypeValue";
         Manager existingManager = new Manager() {
             @Override
@@ -692,7 +914,7 @@ public class TaskManagerTest {
                 return null;
             }
         };
-        taskManager.registeredManagers.put(taskType, existingManager);
+        spyTaskManager.registeredManagers.put(taskType, existingManager);
 
         Manager newManager = new Manager() {
             @Override
@@ -701,16 +923,18 @@ public class TaskManagerTest {
             }
         };
 
-        taskManager.registerManagerForTaskType(newManager, taskType);
+        spyTaskManager.registerManagerForTaskType(newManager, taskType);
 
-        assertThat(taskManager.registeredManagers.size(), is(1));
+        assertThat(spyTaskManager.registeredManagers.size(), is(1));
 
-        Manager managerForTaskType = taskManager.registeredManagers.get(taskType);
+        Manager managerForTaskType = spyTaskManager.registeredManagers.get(taskType);
         assertThat(managerForTaskType, is(existingManager));
     }
 
     @Test
     public void testRegisterManagerSameManagerAlreadyRegistered() throws Exception {
+        TaskManager spyTaskManager = spy(taskManager);
+        doNothing().when(spyTaskManager).postScheduleMoreWork();
         String taskType = "taskTypeValue";
         Manager existingManager = new Manager() {
             @Override
@@ -718,14 +942,52 @@ public class TaskManagerTest {
                 return null;
             }
         };
-        taskManager.registeredManagers.put(taskType, existingManager);
+        spyTaskManager.registeredManagers.put(taskType, existingManager);
 
-        taskManager.registerManagerForTaskType(existingManager, taskType);
+        spyTaskManager.registerManagerForTaskType(existingManager, taskType);
 
-        assertThat(taskManager.registeredManagers.size(), is(1));
+        assertThat(spyTaskManager.registeredManagers.size(), is(1));
 
-        Manager managerForTaskType = taskManager.registeredManagers.get(taskType);
+        Manager managerForTaskType = spyTaskManager.registeredManagers.get(taskType);
         assertThat(managerForTaskType, is(existingManager));
+        verify(spyTaskManager, never()).postScheduleMoreWork();
+    }
+
+    @Test
+    public void testRegisterManagerWithConcurrencyLimit() throws Exception {
+        TaskManager spyTaskManager = spy(taskManager);
+        doNothing().when(spyTaskManager).postScheduleMoreWork();
+        Manager manager = mock(Manager.class);
+
+        spyTaskManager.registerManagerForTaskType(manager, "limitedType", 2, false);
+        spyTaskManager.registerManagerForTaskType(manager, "dedicatedType", 3, true);
+        spyTaskManager.registerManagerForTaskType(manager, "unlimitedType");
+
+        assertThat(spyTaskManager.registeredManagers.size(), is(3));
+        assertThat(spyTaskManager.taskTypeConcurrencies.size(), is(2));
+
+        TaskTypeConcurrency limited = spyTaskManager.taskTypeConcurrencies.get("limitedType");
+        assertThat(limited.maxConcurrentOperations, is(2));
+        assertThat("No dedicated pool", limited.dedicatedExecutorService() == null);
+
+        TaskTypeConcurrency dedicated = spyTaskManager.taskTypeConcurrencies.get("dedicatedType");
+        assertThat(dedicated.maxConcurrentOperations, is(3));
+        assertThat(dedicated.dedicatedExecutorService(), notNullValue());
+    }
+
+    @Test
+    public void testRemoveRegisteredManagerShutsDownDedicatedPool() throws Exception {
+        TaskManager spyTaskManager = spy(taskManager);
+        doNothing().when(spyTaskManager).postScheduleMoreWork();
+        Manager manager = mock(Manager.class);
+
+        spyTaskManager.registerManagerForTaskType(manager, "dedicatedType", 1, true);
+        ExecutorService dedicatedExecutorService = spyTaskManager.taskTypeConcurrencies.get("dedicatedType").dedicatedExecutorService();
+
+        spyTaskManager.removeRegisteredManagerForAllTaskTypes(manager);
+
+        assertThat(spyTaskManager.taskTypeConcurrencies.size(), is(0));
+        assertThat("Dedicated pool shut down", dedicatedExecutorService.isShutdown());
     }
 
     @Test
@@ -763,46 +1025,148 @@ public class TaskManagerTest {
     @Test
     public void testScheduleMoreWorkAlreadyAtCapacity() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
-        mockTaskManager.countOfCurrentlyRunningTasks = TaskManager.MAX_NUMBER_CONCURRENT_OPERATIONS;
-        int expectedNumberOfCalls = TaskManager.MAX_NUMBER_CONCURRENT_OPERATIONS - mockTaskManager.countOfCurrentlyRunningTasks;
-
-        doReturn(true).when(mockTaskManager).createAndQueueNextTaskWorker();
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        mockTaskManager.countOfCurrentlyRunningTasks = mockTaskManager.maxConcurrentOperations;
 
         mockTaskManager.scheduleMoreWork();
 
-        verify(mockTaskManager, times(expectedNumberOfCalls)).createAndQueueNextTaskWorker();
-        assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(TaskManager.MAX_NUMBER_CONCURRENT_OPERATIONS));
-        assertThat(mockTaskManager.workTimer, notNullValue());
+        verify(mockTaskManager, never()).createAndQueueNextTaskWorkers(Matchers.anyInt());
+        assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(mockTaskManager.maxConcurrentOperations));
+    }
+
+    @Test
+    public void testPostScheduleMoreWorkAtCapacityDoesNothing() throws Exception {
+        taskManager.countOfCurrentlyRunningTasks = taskManager.maxConcurrentOperations;
+
+        taskManager.postScheduleMoreWork();
+
+        assertThat("Nothing pending", taskManager.isScheduleWorkPending.get() == false);
+    }
+
+    @Test
+    public void testPostScheduleMoreWorkAlreadyPending() throws Exception {
+        Handler dispatchHandler = taskManager.dispatchHandler;
+        Handler mockHandler = mock(Handler.class);
+        taskManager.dispatchHandler = mockHandler;
+        taskManager.isScheduleWorkPending.set(true);
+
+        taskManager.postScheduleMoreWork();
+        taskManager.postScheduleMoreWork();
+
+        assertThat("Still pending", taskManager.isScheduleWorkPending.get());
+        verify(mockHandler, never()).sendEmptyMessage(TaskManager.MESSAGE_SCHEDULE_WORK);
+        taskManager.dispatchHandler = dispatchHandler;
+    }
+
+    @Test
+    public void testRunPendingScheduleMoreWork() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).scheduleMoreWork();
+        mockTaskManager.isScheduleWorkPending.set(true);
+
+        mockTaskManager.runPendingScheduleMoreWork();
+
+        assertThat("Nothing pending", mockTaskManager.isScheduleWorkPending.get() == false);
+        verify(mockTaskManager).scheduleMoreWork();
+    }
+
+    @Test
+    public void testScheduleWakeUpForDeferredWork() throws Exception {
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        long notBefore = System.currentTimeMillis() + 60 * 1000;
+
+        when(mockDb.timeOfNextDeferredWorkItem()).thenReturn(0L);
+        taskManager.scheduleWakeUpForDeferredWork();
+        assertThat(taskManager.scheduledWakeUpTime, is(0L));
+
+        when(mockDb.timeOfNextDeferredWorkItem()).thenReturn(notBefore);
+        taskManager.scheduleWakeUpForDeferredWork();
+        assertThat(taskManager.scheduledWakeUpTime, is(notBefore));
+
+        // A later work item does not push the queued wake up back.
+        when(mockDb.timeOfNextDeferredWorkItem()).thenReturn(notBefore + 1000);
+        taskManager.scheduleWakeUpForDeferredWork();
+        assertThat(taskManager.scheduledWakeUpTime, is(notBefore));
+
+        when(mockDb.timeOfNextDeferredWorkItem()).thenReturn(notBefore - 1000);
+        taskManager.scheduleWakeUpForDeferredWork();
+        assertThat(taskManager.scheduledWakeUpTime, is(notBefore - 1000));
+    }
+
+    @Test
+    public void testHandleWakeUp() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).scheduleMoreWork();
+        mockTaskManager.scheduledWakeUpTime = 1000;
+
+        mockTaskManager.handleWakeUp();
+
+        assertThat(mockTaskManager.scheduledWakeUpTime, is(0L));
+        verify(mockTaskManager).scheduleMoreWork();
+    }
+
+    @Test
+    public void testHandleWakeUpWithEverySlotBusyDoesNotWakeUpForTokens() throws Exception {
+        Handler dispatchHandler = taskManager.dispatchHandler;
+        Handler mockHandler = mock(Handler.class);
+        taskManager.dispatchHandler = mockHandler;
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        when(mockDb.timeOfNextDeferredWorkItem()).thenReturn(0L);
+        HashMap<String, Integer> readyCounts = new HashMap<>();
+        readyCounts.put("throttledType", 5);
+        when(mockDb.countOfReadyWorkItemsByTaskType(Matchers.anySetOf(String.class), Matchers.anyBoolean())).thenReturn(readyCounts);
+
+        // Throttled in an earlier pass, its bucket has refilled since.
+        taskManager.registeredManagers.put("throttledType", mock(Manager.class));
+        taskManager.rateLimiters.put("throttledType", new TokenBucket(1, 1, SystemClock.elapsedRealtime()));
+        taskManager.throttledTaskTypes.add("throttledType");
+        taskManager.countOfCurrentlyRunningTasks = taskManager.concurrencyLimit();
+
+        taskManager.handleWakeUp();
+        taskManager.handleWakeUp();
+
+        verify(mockDb, never()).claimNextWorkItems(Matchers.anySetOf(String.class), Matchers.anyBoolean(), Matchers.anyInt());
+        verify(mockHandler, never()).sendEmptyMessageDelayed(Matchers.eq(TaskManager.MESSAGE_WAKE_UP), Matchers.anyLong());
+        assertThat(taskManager.scheduledWakeUpTime, is(0L));
+        taskManager.countOfCurrentlyRunningTasks = 0;
+        taskManager.dispatchHandler = dispatchHandler;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetRateLimitForTaskTypeRejectsZeroRate() throws Exception {
+        taskManager.setRateLimitForTaskType("taskType", 0, 1);
     }
 
     @Test
     public void testScheduleMoreWork() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         mockTaskManager.countOfCurrentlyRunningTasks = 1;
-        int expectedNumberOfCalls = TaskManager.MAX_NUMBER_CONCURRENT_OPERATIONS - mockTaskManager.countOfCurrentlyRunningTasks;
+        int expectedNumberOfSlots = mockTaskManager.maxConcurrentOperations - mockTaskManager.countOfCurrentlyRunningTasks;
 
-        doReturn(true).when(mockTaskManager).createAndQueueNextTaskWorker();
+        doReturn(expectedNumberOfSlots).when(mockTaskManager).createAndQueueNextTaskWorkers(expectedNumberOfSlots);
 
         mockTaskManager.scheduleMoreWork();
 
-        verify(mockTaskManager, times(expectedNumberOfCalls)).createAndQueueNextTaskWorker();
-        assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(TaskManager.MAX_NUMBER_CONCURRENT_OPERATIONS));
-        assertThat(mockTaskManager.workTimer, notNullValue());
+        verify(mockTaskManager, times(1)).createAndQueueNextTaskWorkers(expectedNumberOfSlots);
+        assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(mockTaskManager.maxConcurrentOperations));
     }
 
     @Test
     public void testScheduleMoreWorkCreateFailed() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         int initialRunningTaskCount = 1;
         mockTaskManager.countOfCurrentlyRunningTasks = initialRunningTaskCount;
 
-        doReturn(false).when(mockTaskManager).createAndQueueNextTaskWorker();
+        doReturn(0).when(mockTaskManager).createAndQueueNextTaskWorkers(Matchers.anyInt());
 
         mockTaskManager.scheduleMoreWork();
 
-        verify(mockTaskManager, times(1)).createAndQueueNextTaskWorker();
+        verify(mockTaskManager, times(1)).createAndQueueNextTaskWorkers(mockTaskManager.maxConcurrentOperations - initialRunningTaskCount);
         assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(initialRunningTaskCount));
-        assertThat(mockTaskManager.workTimer, notNullValue());
     }
     //endregion
 
@@ -838,17 +1202,14 @@ public class TaskManagerTest {
         NetworkInfo mockNetworkInfo = mock(NetworkInfo.class);
         when(mockNetworkInfo.isConnected()).thenReturn(false);
         when(mockConnetivityManager.getActiveNetworkInfo()).thenReturn(mockNetworkInfo);
-        when(mockDb.getNextWorkItemForTaskTypes(taskTypes, false)).thenReturn(workItem);
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+        when(mockDb.claimNextWorkItems(taskTypes, false, 1)).thenReturn(claimedWorkItems);
         when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(worker);
 
-        boolean success = taskManager.createAndQueueNextTaskWorker();
-        assertThat(success, is(true));
-
-        ArgumentCaptor workItemCaptor = ArgumentCaptor.forClass(InternalWorkItem.class);
-        verify(mockDb).updateWorkItem((InternalWorkItem) workItemCaptor.capture());
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(1);
+        assertThat(numberOfQueuedWorkers, is(1));
 
-        InternalWorkItem updatedWorkItem = (InternalWorkItem)workItemCaptor.getValue();
-        assertThat(updatedWorkItem.getState(), is(WorkItemState.EXECUTING));
 
         ArgumentCaptor taskWorkerCaptor = ArgumentCaptor.forClass(TaskWorker.class);
         verify(mockExecutorService).execute((TaskWorker)taskWorkerCaptor.capture());
@@ -857,7 +1218,8 @@ public class TaskManagerTest {
         assertThat(executedTaskWorker.taskFinishedDelegate(), notNullValue());
 
         verify(mockManager).taskWorkerForWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockDb).getNextWorkItemForTaskTypes(taskTypes, false);
+        verify(mockDb).loadPayloadOfWorkItem(workItem);
+        verify(mockDb).claimNextWorkItems(taskTypes, false, 1);
         verify(mockNetworkInfo).isConnected();
         verify(mockConnetivityManager).getActiveNetworkInfo();
     }
@@ -893,17 +1255,14 @@ public class TaskManagerTest {
         NetworkInfo mockNetworkInfo = mock(NetworkInfo.class);
         when(mockNetworkInfo.isConnected()).thenReturn(true);
         when(mockConnetivityManager.getActiveNetworkInfo()).thenReturn(mockNetworkInfo);
-        when(mockDb.getNextWorkItemForTaskTypes(taskTypes, true)).thenReturn(workItem);
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+        when(mockDb.claimNextWorkItems(taskTypes, true, 1)).thenReturn(claimedWorkItems);
         when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(worker);
 
-        boolean success = taskManager.createAndQueueNextTaskWorker();
-        assertThat(success, is(true));
-
-        ArgumentCaptor workItemCaptor = ArgumentCaptor.forClass(InternalWorkItem.class);
-        verify(mockDb).updateWorkItem((InternalWorkItem)workItemCaptor.capture());
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(1);
+        assertThat(numberOfQueuedWorkers, is(1));
 
-        InternalWorkItem updatedWorkItem = (InternalWorkItem)workItemCaptor.getValue();
-        assertThat(updatedWorkItem.getState(), is(WorkItemState.EXECUTING));
 
         ArgumentCaptor taskWorkerCaptor = ArgumentCaptor.forClass(TaskWorker.class);
         verify(mockExecutorService).execute((TaskWorker)taskWorkerCaptor.capture());
@@ -912,7 +1271,7 @@ public class TaskManagerTest {
         assertThat(executedTaskWorker.taskFinishedDelegate(), notNullValue());
 
         verify(mockManager).taskWorkerForWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockDb).getNextWorkItemForTaskTypes(taskTypes, true);
+        verify(mockDb).claimNextWorkItems(taskTypes, true, 1);
         verify(mockNetworkInfo).isConnected();
         verify(mockConnetivityManager).getActiveNetworkInfo();
     }
@@ -937,26 +1296,370 @@ public class TaskManagerTest {
         NetworkInfo mockNetworkInfo = mock(NetworkInfo.class);
         when(mockNetworkInfo.isConnected()).thenReturn(false);
         when(mockConnetivityManager.getActiveNetworkInfo()).thenReturn(mockNetworkInfo);
-        when(mockDb.getNextWorkItemForTaskTypes(taskTypes, false)).thenReturn(null);
+        when(mockDb.claimNextWorkItems(taskTypes, false, 1)).thenReturn(new ArrayList<InternalWorkItem>());
 
-        boolean success = taskManager.createAndQueueNextTaskWorker();
-        assertThat(success, is(false));
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(1);
+        assertThat(numberOfQueuedWorkers, is(0));
 
-        verify(mockDb, never()).updateWorkItem(Matchers.any(InternalWorkItem.class));
         verify(mockExecutorService, never()).execute(Matchers.any(TaskWorker.class));
 
         verify(mockManager, never()).taskWorkerForWorkItem(Matchers.any(InternalWorkItem.class));
-        verify(mockDb).getNextWorkItemForTaskTypes(taskTypes, false);
+        verify(mockDb).claimNextWorkItems(taskTypes, false, 1);
         verify(mockNetworkInfo).isConnected();
         verify(mockConnetivityManager).getActiveNetworkInfo();
     }
 
+    @Test
+    public void testCreateAndQueueNextTaskWorkersFillsEverySlot() throws Exception {
+        String taskType = "taskT";
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put(taskType, mockManager);
+
+        Set<String> taskTypes = taskManager.registeredManagers.keySet();
+
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setState(WorkItemState.EXECUTING);
+            workItem.setTaskType(taskType);
+            claimedWorkItems.add(workItem);
+        }
+
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        taskManager.executorService = mockExecutorService;
+
+        taskManager.connectivityManager = null;
+        when(mockDb.claimNextWorkItems(taskTypes, false, 4)).thenReturn(claimedWorkItems);
+        when(mockManager.taskWorkerForWorkItem(Matchers.any(InternalWorkItem.class))).thenReturn(worker);
+
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(4);
+        assertThat(numberOfQueuedWorkers, is(3));
+
+        verify(mockDb, times(1)).claimNextWorkItems(taskTypes, false, 4);
+        verify(mockExecutorService, times(3)).execute(Matchers.any(TaskWorker.class));
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkersSkipsTaskTypeAtLimit() throws Exception {
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put("fullType", mockManager);
+        taskManager.registeredManagers.put("limitedType", mockManager);
+        taskManager.registeredManagers.put("unlimitedType", mockManager);
+
+        TaskTypeConcurrency full = new TaskTypeConcurrency(2, false, false);
+        full.countOfCurrentlyRunningTasks = 2;
+        taskManager.taskTypeConcurrencies.put("fullType", full);
+        TaskTypeConcurrency limited = new TaskTypeConcurrency(3, false, false);
+        limited.countOfCurrentlyRunningTasks = 1;
+        taskManager.taskTypeConcurrencies.put("limitedType", limited);
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        taskManager.connectivityManager = null;
+
+        HashSet<String> expectedTaskTypes = new HashSet<>();
+        expectedTaskTypes.add("limitedType");
+        expectedTaskTypes.add("unlimitedType");
+        HashMap<String, Integer> expectedLimits = new HashMap<>();
+        expectedLimits.put("limitedType", 2);
+        when(mockDb.claimNextWorkItems(expectedTaskTypes, expectedLimits, false, 4)).thenReturn(new ArrayList<InternalWorkItem>());
+
+        assertThat(taskManager.createAndQueueNextTaskWorkers(4), is(0));
+
+        verify(mockDb).claimNextWorkItems(expectedTaskTypes, expectedLimits, false, 4);
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkersSkipsThrottledTaskType() throws Exception {
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put("throttledType", mockManager);
+        taskManager.registeredManagers.put("rateLimitedType", mockManager);
+        taskManager.registeredManagers.put("unlimitedType", mockManager);
+
+        long now = SystemClock.elapsedRealtime();
+        TokenBucket throttled = new TokenBucket(0, 1, now);
+        throttled.consume(1, now);
+        taskManager.rateLimiters.put("throttledType", throttled);
+        TokenBucket rateLimited = new TokenBucket(0, 2, now);
+        taskManager.rateLimiters.put("rateLimitedType", rateLimited);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("rateLimitedType");
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        taskManager.executorService = mock(ExecutorService.class);
+        taskManager.connectivityManager = null;
+
+        HashSet<String> expectedTaskTypes = new HashSet<>();
+        expectedTaskTypes.add("rateLimitedType");
+        expectedTaskTypes.add("unlimitedType");
+        HashMap<String, Integer> expectedLimits = new HashMap<>();
+        expectedLimits.put("rateLimitedType", 2);
+        when(mockDb.claimNextWorkItems(expectedTaskTypes, expectedLimits, false, 4)).thenReturn(claimedWorkItems);
+        when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        });
+
+        taskManager.createAndQueueNextTaskWorkers(4);
+
+        verify(mockDb).claimNextWorkItems(expectedTaskTypes, expectedLimits, false, 4);
+        assertThat(taskManager.throttledTaskTypes.contains("throttledType"), is(true));
+        assertThat("Claimed work item takes a token", rateLimited.availableTokens(now), is(1));
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkersBatch() throws Exception {
+        String taskType = "reportEvent";
+        Manager mockManager = mock(Manager.class);
+        when(mockManager.maxBatchSize()).thenReturn(3);
+        taskManager.registeredManagers.put(taskType, mockManager);
+
+        InternalWorkItem first = new InternalWorkItem();
+        first.setTaskType(taskType);
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(first);
+        InternalWorkItem second = new InternalWorkItem();
+        second.setTaskType(taskType);
+        InternalWorkItem third = new InternalWorkItem();
+        third.setTaskType(taskType);
+        ArrayList<InternalWorkItem> moreWorkItems = new ArrayList<>();
+        moreWorkItems.add(second);
+        moreWorkItems.add(third);
+
+        BatchTaskWorker worker = new BatchTaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        taskManager.executorService = mockExecutorService;
+        taskManager.connectivityManager = null;
+
+        HashSet<String> taskTypes = new HashSet<>();
+        taskTypes.add(taskType);
+        // The slot claim and the claim that fills up the batch ask for the same number here.
+        when(mockDb.claimNextWorkItems(taskTypes, false, 2)).thenReturn(claimedWorkItems, moreWorkItems);
+        when(mockManager.batchTaskWorkerForWorkItems(Matchers.anyListOf(InternalWorkItem.class))).thenReturn(worker);
+
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(2);
+
+        assertThat("The batch takes one slot", numberOfQueuedWorkers, is(1));
+        assertThat(worker.workItems().size(), is(3));
+        assertThat(worker.workItems().get(0), is(first));
+        verify(mockDb).loadPayloadOfWorkItem(third);
+        verify(mockManager, never()).taskWorkerForWorkItem(Matchers.any(InternalWorkItem.class));
+        verify(mockExecutorService, times(1)).execute(worker);
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkersDedicatedPool() throws Exception {
+        String taskType = "dedicatedType";
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put(taskType, mockManager);
+        TaskTypeConcurrency dedicated = new TaskTypeConcurrency(2, true, false);
+        taskManager.taskTypeConcurrencies.put(taskType, dedicated);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setState(WorkItemState.EXECUTING);
+        workItem.setTaskType(taskType);
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        taskManager.executorService = mockExecutorService;
+        taskManager.connectivityManager = null;
+
+        HashSet<String> dedicatedTaskTypes = new HashSet<>();
+        dedicatedTaskTypes.add(taskType);
+        HashMap<String, Integer> expectedLimits = new HashMap<>();
+        expectedLimits.put(taskType, 2);
+        when(mockDb.claimNextWorkItems(new HashSet<String>(), expectedLimits, false, 0)).thenReturn(new ArrayList<InternalWorkItem>());
+        when(mockDb.claimNextWorkItems(dedicatedTaskTypes, expectedLimits, false, 2)).thenReturn(claimedWorkItems);
+        when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(worker);
+
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(0);
+
+        assertThat("Does not take a shared slot", numberOfQueuedWorkers == 0);
+        assertThat(dedicated.countOfCurrentlyRunningTasks, is(1));
+        assertThat(worker.taskTypeConcurrency(), is(dedicated));
+        verify(mockExecutorService, never()).execute(Matchers.any(Runnable.class));
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkersFairScheduling() throws Exception {
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put("typeA", mockManager);
+        taskManager.registeredManagers.put("typeB", mockManager);
+        taskManager.fairScheduler = new DeficitRoundRobin();
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+        taskManager.connectivityManager = null;
+
+        HashSet<String> taskTypes = new HashSet<>();
+        taskTypes.add("typeA");
+        taskTypes.add("typeB");
+        HashMap<String, Integer> backlog = new HashMap<>();
+        backlog.put("typeA", 10);
+        backlog.put("typeB", 10);
+        when(mockDb.countOfReadyWorkItemsByTaskType(taskTypes, false)).thenReturn(backlog);
+
+        HashMap<String, Integer> expectedAllocation = new HashMap<>();
+        expectedAllocation.put("typeA", 2);
+        expectedAllocation.put("typeB", 2);
+
+        taskManager.createAndQueueNextTaskWorkers(4);
+
+        verify(mockDb).claimNextWorkItems(taskTypes, expectedAllocation, false, 4);
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkerNoManagerReleasesWorkItem() throws Exception {
+        String taskType = "taskT";
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put(taskType, mockManager);
+
+        Set<String> taskTypes = taskManager.registeredManagers.keySet();
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setState(WorkItemState.EXECUTING);
+        workItem.setTaskType("unregisteredType");
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        taskManager.executorService = mockExecutorService;
+
+        taskManager.connectivityManager = null;
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+        when(mockDb.claimNextWorkItems(taskTypes, false, 1)).thenReturn(claimedWorkItems);
+
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(1);
+        assertThat(numberOfQueuedWorkers, is(0));
+
+        verify(mockDb).releaseClaimedWorkItem(workItem);
+        verify(mockExecutorService, never()).execute(Matchers.any(TaskWorker.class));
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkerRejectedReleasesWorkItem() throws Exception {
+        String taskType = "taskT";
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put(taskType, mockManager);
+
+        Set<String> taskTypes = taskManager.registeredManagers.keySet();
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setState(WorkItemState.EXECUTING);
+        workItem.setTaskType(taskType);
+
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        doThrow(new RejectedExecutionException()).when(mockExecutorService).execute(worker);
+        taskManager.executorService = mockExecutorService;
+
+        taskManager.connectivityManager = null;
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+        when(mockDb.claimNextWorkItems(taskTypes, false, 1)).thenReturn(claimedWorkItems);
+        when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(worker);
+
+        int numberOfQueuedWorkers = taskManager.createAndQueueNextTaskWorkers(1);
+        assertThat(numberOfQueuedWorkers, is(0));
+
+        verify(mockDb).releaseClaimedWorkItem(workItem);
+    }
+
+    @Test
+    public void testCreateAndQueueNextTaskWorkerRejectedRefundsToken() throws Exception {
+        String taskType = "taskT";
+        Manager mockManager = mock(Manager.class);
+        taskManager.registeredManagers.put(taskType, mockManager);
+        long now = SystemClock.elapsedRealtime();
+        TokenBucket rateLimiter = new TokenBucket(0, 2, now);
+        taskManager.rateLimiters.put(taskType, rateLimiter);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setState(WorkItemState.EXECUTING);
+        workItem.setTaskType(taskType);
+
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        taskManager.workItemDatabaseHelper = mockDb;
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        doThrow(new RejectedExecutionException()).when(mockExecutorService).execute(worker);
+        taskManager.executorService = mockExecutorService;
+
+        taskManager.connectivityManager = null;
+        HashSet<String> taskTypes = new HashSet<>();
+        taskTypes.add(taskType);
+        HashMap<String, Integer> limits = new HashMap<>();
+        limits.put(taskType, 2);
+        ArrayList<InternalWorkItem> claimedWorkItems = new ArrayList<>();
+        claimedWorkItems.add(workItem);
+        when(mockDb.claimNextWorkItems(taskTypes, limits, false, 1)).thenReturn(claimedWorkItems);
+        when(mockManager.taskWorkerForWorkItem(workItem)).thenReturn(worker);
+
+        assertThat(taskManager.createAndQueueNextTaskWorkers(1), is(0));
+
+        verify(mockDb).releaseClaimedWorkItem(workItem);
+        assertThat("No worker ran, so no token is used", rateLimiter.availableTokens(now), is(2));
+    }
+
     //endregion
 
     //region Test TaskFinished Interface
     @Test
     public void testTaskFinishedSuccess() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -973,17 +1676,108 @@ public class TaskManagerTest {
         };
         worker.setWorkItem(workItem);
 
-        mockTaskManager.taskWorkerFinishedSuccessfully(worker, success);
+        mockTaskManager.handleTaskWorkerFinished(worker, success);
 
-        verify(mockDb).deleteWorkItem(workItem);
+        verify(mockDb).completeWorkItem(workItem);
+        verify(mockDb, never()).deleteWorkItem(workItem);
         verify(mockTaskManager).scheduleMoreWork();
 
         assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(initialTasksRunning-1));
     }
 
+    @Test
+    public void testTaskFinishedOnDedicatedPool() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        doNothing().when(mockTaskManager).scheduleMoreWork();
+        mockTaskManager.workItemDatabaseHelper = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.countOfCurrentlyRunningTasks = 2;
+
+        TaskTypeConcurrency dedicated = new TaskTypeConcurrency(1, true, false);
+        dedicated.countOfCurrentlyRunningTasks = 1;
+
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+        worker.setWorkItem(new InternalWorkItem());
+        worker.setTaskTypeConcurrency(dedicated);
+
+        mockTaskManager.handleTaskWorkerFinished(worker, true);
+
+        assertThat(dedicated.countOfCurrentlyRunningTasks, is(0));
+        assertThat(mockTaskManager.countOfCurrentlyRunningTasks, is(2));
+    }
+
+    @Test
+    public void testTaskFinishedFailureRetryWithBackoff() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        doNothing().when(mockTaskManager).scheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+        mockTaskManager.countOfCurrentlyRunningTasks = 1;
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setMaxRetries(5);
+        workItem.setRetryCount(2);
+        workItem.setState(WorkItemState.EXECUTING);
+        workItem.setBackoffPolicy(BackoffPolicy.exponential(1000, 60000));
+        TaskWorker worker = new TaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+        worker.setWorkItem(workItem);
+
+        long before = System.currentTimeMillis();
+        mockTaskManager.handleTaskWorkerFinished(worker, false);
+        long after = System.currentTimeMillis();
+
+        verify(mockDb).retryFailedWorkItem(workItem);
+        assertThat(workItem.getRetryCount(), is(3));
+        assertThat("Waits 4 seconds before the third retry", workItem.getNotBefore() >= before + 4000 && workItem.getNotBefore() <= after + 4000);
+    }
+
+    @Test
+    public void testTaskFinishedBatchFinishesEachWorkItem() throws Exception {
+        TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
+        doNothing().when(mockTaskManager).scheduleMoreWork();
+        WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
+        mockTaskManager.workItemDatabaseHelper = mockDb;
+        mockTaskManager.countOfCurrentlyRunningTasks = 2;
+
+        InternalWorkItem succeeded = new InternalWorkItem();
+        succeeded.setMaxRetries(3);
+        InternalWorkItem failed = new InternalWorkItem();
+        failed.setMaxRetries(3);
+        BatchTaskWorker worker = new BatchTaskWorker() {
+            @Override
+            public void run() {
+
+            }
+        };
+        worker.setupWithWorkItems(Arrays.asList(succeeded, failed));
+        worker.setTaskFinishedDelegate(mock(TaskFinishedInterface.class));
+        worker.workItemFinishedWasSuccessful(succeeded, true);
+        worker.workItemFinishedWasSuccessful(failed, false);
+
+        mockTaskManager.handleTaskWorkerFinished(worker, true);
+
+        verify(mockDb).completeWorkItem(succeeded);
+        verify(mockDb).retryFailedWorkItem(failed);
+        assertThat(failed.getRetryCount(), is(1));
+        assertThat("The batch held one slot", mockTaskManager.countOfCurrentlyRunningTasks, is(1));
+    }
+
     @Test
     public void testTaskFinishedFailureRetryLessThanMax() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -1007,15 +1801,12 @@ public class TaskManagerTest {
         };
         worker.setWorkItem(workItem);
 
-        mockTaskManager.taskWorkerFinishedSuccessfully(worker, success);
+        mockTaskManager.handleTaskWorkerFinished(worker, success);
 
-        ArgumentCaptor captor = ArgumentCaptor.forClass(InternalWorkItem.class);
+        verify(mockDb).retryFailedWorkItem(workItem);
 
-        verify(mockDb).updateWorkItem((InternalWorkItem) captor.capture());
-
-        InternalWorkItem newWorkItem = (InternalWorkItem)captor.getValue();
-        assertThat(newWorkItem.getRetryCount(), is(currentRetryCount+1));
-        assertThat(newWorkItem.getState(), is(WorkItemState.READY));
+        assertThat(workItem.getRetryCount(), is(currentRetryCount+1));
+        assertThat(workItem.getState(), is(WorkItemState.READY));
 
         verify(mockTaskManager).scheduleMoreWork();
 
@@ -1025,6 +1816,7 @@ public class TaskManagerTest {
     @Test
     public void testTaskFinishedFailureRetryMaxShouldNotHold() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -1054,7 +1846,7 @@ public class TaskManagerTest {
         };
         worker.setWorkItem(workItem);
 
-        mockTaskManager.taskWorkerFinishedSuccessfully(worker, success);
+        mockTaskManager.handleTaskWorkerFinished(worker, success);
 
 
         verify(mockManager).workItemDidFail(workItem);
@@ -1067,6 +1859,7 @@ public class TaskManagerTest {
     @Test
     public void testTaskFinishedFailureRetryMaxShouldHold() throws Exception {
         TaskManager mockTaskManager = spy(taskManager);
+        doNothing().when(mockTaskManager).postScheduleMoreWork();
         WorkItemDatabaseHelper mockDb = mock(WorkItemDatabaseHelper.class);
         mockTaskManager.workItemDatabaseHelper = mockDb;
 
@@ -1095,15 +1888,12 @@ public class TaskManagerTest {
         };
         worker.setWorkItem(workItem);
 
-        mockTaskManager.taskWorkerFinishedSuccessfully(worker, success);
-
-        ArgumentCaptor captor = ArgumentCaptor.forClass(InternalWorkItem.class);
+        mockTaskManager.handleTaskWorkerFinished(worker, success);
 
-        verify(mockDb).updateWorkItem((InternalWorkItem) captor.capture());
+        verify(mockDb).holdFailedWorkItem(workItem);
 
-        InternalWorkItem newWorkItem = (InternalWorkItem)captor.getValue();
-        assertThat(newWorkItem.getRetryCount(), is(currentRetryCount+1));
-        assertThat(newWorkItem.getState(), is(WorkItemState.HOLDING));
+        assertThat(workItem.getRetryCount(), is(currentRetryCount+1));
+        assertThat(workItem.getState(), is(WorkItemState.HOLDING));
         verify(mockManager).workItemDidFail(workItem);
         verify(mockTaskManager).scheduleMoreWork();
 
@@ -0,0 +1,63 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TokenBucketTest {
+
+    @Test
+    public void testStartsFullAtBurstSize() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(1, 5, 1000);
+
+        assertThat(tokenBucket.availableTokens(1000), is(5));
+        assertThat(tokenBucket.millisUntilNextToken(1000), is(0L));
+    }
+
+    @Test
+    public void testConsumeAndRefill() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(2, 4, 0);
+        tokenBucket.consume(4, 0);
+
+        assertThat(tokenBucket.availableTokens(0), is(0));
+        assertThat(tokenBucket.millisUntilNextToken(0), is(500L));
+        assertThat(tokenBucket.availableTokens(499), is(0));
+        assertThat(tokenBucket.availableTokens(500), is(1));
+        assertThat(tokenBucket.availableTokens(1500), is(3));
+    }
+
+    @Test
+    public void testRefillStopsAtBurstSize() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(10, 3, 0);
+        tokenBucket.consume(3, 0);
+
+        assertThat(tokenBucket.availableTokens(60000), is(3));
+    }
+
+    @Test
+    public void testRefundStopsAtBurstSize() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(1, 3, 0);
+        tokenBucket.consume(2, 0);
+
+        tokenBucket.refund(1, 0);
+        assertThat(tokenBucket.availableTokens(0), is(2));
+
+        tokenBucket.refund(5, 0);
+        assertThat(tokenBucket.availableTokens(0), is(3));
+    }
+
+    @Test
+    public void testZeroRateNeverRefills() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(0, 1, 0);
+        tokenBucket.consume(1, 0);
+
+        assertThat(tokenBucket.availableTokens(60000), is(0));
+        assertThat(tokenBucket.millisUntilNextToken(60000), is(Long.MAX_VALUE));
+    }
+}
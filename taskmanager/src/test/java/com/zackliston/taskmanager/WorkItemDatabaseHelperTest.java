@@ -13,6 +13,10 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -34,13 +38,22 @@ import static org.hamcrest.CoreMatchers.is;
 public class WorkItemDatabaseHelperTest
 {
     //region Constants
-    private static final int    DATABASE_VERSION        = 1;
+    private static final int    DATABASE_VERSION        = 12;
     private static final String DATABASE_NAME           = "WorkItemDB";
     private static final String WORK_ITEM_TABLE_NAME    = "work_item";
+    private static final String PAYLOAD_TABLE_NAME      = "work_item_payload";
+    private static final String DISPATCH_INDEX_NAME     = "work_item_dispatch_index";
+    private static final String COUNT_TABLE_NAME        = "work_item_count";
+    private static final String DEPENDENCY_TABLE_NAME   = "work_item_dependency";
+    private static final String REMOVED_TABLE_NAME      = "work_item_removed";
     private static final String DEFAULT_ID_COLUMN       = "id";
+    private static final String WORK_ITEM_ID_COLUMN     = "work_item_id";
     private static final String TASK_TYPE_COLUMN        = "task_type";
     private static final String STATE_COLUMN            = "state";
     private static final String DATA_COLUMN             = "data";
+    private static final String PAYLOAD_COLUMN          = "payload";
+    private static final String PAYLOAD_CODEC_COLUMN    = "payload_codec";
+    private static final String PAYLOAD_FILE_COLUMN     = "payload_file";
     private static final String MAJOR_PRIORITY_COLUMN   = "major_priority";
     private static final String MINOR_PRIORITY_COLUMN   = "minor_priority";
     private static final String RETRY_COUNT_COLUMN      = "retry_count";
@@ -48,8 +61,13 @@ public class WorkItemDatabaseHelperTest
     private static final String REQUIRES_INTERNET_COLUMN = "requires_internet";
     private static final String MAX_RETRIES_COLUMN      = "max_retries";
     private static final String SHOULD_HOLD_COLUMN      = "should_hold";
+    private static final String NOT_BEFORE_COLUMN       = "not_before";
+    private static final String BACKOFF_TYPE_COLUMN     = "backoff_type";
+    private static final String BACKOFF_DELAY_COLUMN    = "backoff_delay";
+    private static final String BACKOFF_MAX_DELAY_COLUMN = "backoff_max_delay";
+    private static final String COALESCING_KEY_COLUMN   = "coalescing_key";
 
-    private static final String[] DEFAULT_COLUMNS = {TASK_TYPE_COLUMN, DEFAULT_ID_COLUMN, STATE_COLUMN, DATA_COLUMN, MAJOR_PRIORITY_COLUMN, MINOR_PRIORITY_COLUMN, RETRY_COUNT_COLUMN, TIME_CREATED_COLUMN, REQUIRES_INTERNET_COLUMN, MAX_RETRIES_COLUMN, SHOULD_HOLD_COLUMN};
+    private static final String[] DEFAULT_COLUMNS = {TASK_TYPE_COLUMN, DEFAULT_ID_COLUMN, STATE_COLUMN, MAJOR_PRIORITY_COLUMN, MINOR_PRIORITY_COLUMN, RETRY_COUNT_COLUMN, TIME_CREATED_COLUMN, REQUIRES_INTERNET_COLUMN, MAX_RETRIES_COLUMN, SHOULD_HOLD_COLUMN, NOT_BEFORE_COLUMN, BACKOFF_TYPE_COLUMN, BACKOFF_DELAY_COLUMN, BACKOFF_MAX_DELAY_COLUMN, COALESCING_KEY_COLUMN};
 
     //endregion
 
@@ -63,6 +81,9 @@ public class WorkItemDatabaseHelperTest
     @After
     public void tearDown() {
         databaseHelper.getWritableDatabase().execSQL("DROP TABLE " + WORK_ITEM_TABLE_NAME);
+        databaseHelper.getWritableDatabase().execSQL("DROP TABLE " + COUNT_TABLE_NAME);
+        databaseHelper.getWritableDatabase().execSQL("DROP TABLE IF EXISTS " + PAYLOAD_TABLE_NAME);
+        databaseHelper.getWritableDatabase().execSQL("DROP TABLE IF EXISTS " + DEPENDENCY_TABLE_NAME);
         databaseHelper = null;
     }
 
@@ -102,7 +123,7 @@ public class WorkItemDatabaseHelperTest
         cursor.moveToFirst();
 
         assertThat(cursor.getString(cursor.getColumnIndex(TASK_TYPE_COLUMN)), is(taskType));
-        assertThat(cursor.getString(cursor.getColumnIndex(DATA_COLUMN)), is(data));
+        assertThat(payloadString(cursor), is(data));
         assertThat(cursor.getInt(cursor.getColumnIndex(STATE_COLUMN)), is(state.value()));
         assertThat(cursor.getInt(cursor.getColumnIndex(MAJOR_PRIORITY_COLUMN)), is(majorP));
         assertThat(cursor.getInt(cursor.getColumnIndex(MINOR_PRIORITY_COLUMN)), is(minorP));
@@ -129,75 +150,286 @@ public class WorkItemDatabaseHelperTest
     }
 
     @Test
-    public void testUpdateWorkItemSuccess() throws Exception {
-        InternalWorkItem initialWorkItem = new InternalWorkItem();
-        initialWorkItem.setState(WorkItemState.HOLDING);
-        databaseHelper.addNewWorkItem(initialWorkItem);
+    public void testAddWorkItemsSuccess() throws Exception {
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>();
+        for (int i=0; i<20; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType("type" + i);
+            workItem.setState(WorkItemState.READY);
+            workItem.setData("data" + i);
+            workItem.setMajorPriority(i);
+            workItems.add(workItem);
+        }
 
-        String[] columns = {DEFAULT_ID_COLUMN};
-        Cursor initialCursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, columns, null, null, null, null, null);
-        initialCursor.moveToFirst();
+        boolean success = databaseHelper.addNewWorkItems(workItems);
+        assertThat("Successful", success);
 
-        assertThat(initialCursor.getCount(), is(1));
-        int workItemId = initialCursor.getInt(initialCursor.getColumnIndex(DEFAULT_ID_COLUMN));
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, null, null, null, null, DEFAULT_ID_COLUMN + " ASC");
+        assertThat(cursor.getCount(), is(20));
 
-        final String taskType = "taskTypeaa";
-        final WorkItemState state = WorkItemState.HOLDING;
-        final String data = "someData";
-        final int majorP = 4;
-        final int minorP = 333;
-        final int retry = 90;
-        final int timeCreated = 98474;
-        final boolean requiresInternet = true;
-        final int maxRetry = 4234;
-        final boolean shouldHold = true;
+        for (int i=0; i<20; i++) {
+            cursor.moveToPosition(i);
+            assertThat(cursor.getInt(cursor.getColumnIndex(DEFAULT_ID_COLUMN)), is(workItems.get(i).getId()));
+            assertThat(cursor.getString(cursor.getColumnIndex(TASK_TYPE_COLUMN)), is("type" + i));
+            assertThat(payloadString(cursor), is("data" + i));
+            assertThat(cursor.getInt(cursor.getColumnIndex(MAJOR_PRIORITY_COLUMN)), is(i));
+        }
+        cursor.close();
+    }
+
+    @Test
+    public void testAddWorkItemsFailureAddsNone() throws Exception {
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>();
 
-        InternalWorkItem updatedWorkItem = new InternalWorkItem();
-        updatedWorkItem.setId(workItemId);
-        updatedWorkItem.setTaskType(taskType);
-        updatedWorkItem.setState(state);
-        updatedWorkItem.setData(data);
-        updatedWorkItem.setMajorPriority(majorP);
-        updatedWorkItem.setMinorPriority(minorP);
-        updatedWorkItem.setRetryCount(retry);
-        updatedWorkItem.setTimeCreated(timeCreated);
-        updatedWorkItem.setRequiresInternet(requiresInternet);
-        updatedWorkItem.setMaxRetries(maxRetry);
-        updatedWorkItem.setShouldHold(shouldHold);
-
-        boolean success = databaseHelper.updateWorkItem(updatedWorkItem);
-        assertThat("succeeded", success);
+        InternalWorkItem validWorkItem = new InternalWorkItem();
+        validWorkItem.setState(WorkItemState.READY);
+        workItems.add(validWorkItem);
+
+        InternalWorkItem invalidWorkItem = new InternalWorkItem();
+        workItems.add(invalidWorkItem);
+
+        boolean success = databaseHelper.addNewWorkItems(workItems);
+        assertThat("Failed", success == false);
 
         Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, null, null, null, null, null);
+        assertThat(cursor.getCount(), is(0));
+        cursor.close();
+    }
 
-        assertThat(cursor.getCount(), is(1));
+    @Test
+    public void testAddWorkItemRawPayload() throws Exception {
+        byte[] payload = {0, 1, 2, 3, (byte) 0xff};
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("rawType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPayload(payload, PayloadCodec.RAW);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("rawType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        assertThat(returnedItem.getPayloadCodec(), is(PayloadCodec.RAW));
+        assertThat(returnedItem.getPayload(), is(payload));
+        assertThat(returnedItem.getData(), nullValue());
+    }
+
+    @Test
+    public void testAddWorkItemDeflatePayload() throws Exception {
+        byte[] payload = new byte[10000];
+        for (int i=0; i<payload.length; i++) {
+            payload[i] = (byte) (i % 7);
+        }
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("deflateType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPayload(payload, PayloadCodec.DEFLATE);
+        databaseHelper.addNewWorkItem(workItem);
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(PAYLOAD_TABLE_NAME, null, null, null, null, null, null);
         cursor.moveToFirst();
+        assertThat("Stored compressed", cursor.getBlob(cursor.getColumnIndex(PAYLOAD_COLUMN)).length < payload.length);
+        assertThat(cursor.getInt(cursor.getColumnIndex(PAYLOAD_CODEC_COLUMN)), is(PayloadCodec.DEFLATE.value()));
+        cursor.close();
 
-        assertThat(cursor.getString(cursor.getColumnIndex(TASK_TYPE_COLUMN)), is(taskType));
-        assertThat(cursor.getString(cursor.getColumnIndex(DATA_COLUMN)), is(data));
-        assertThat(cursor.getInt(cursor.getColumnIndex(STATE_COLUMN)), is(state.value()));
-        assertThat(cursor.getInt(cursor.getColumnIndex(MAJOR_PRIORITY_COLUMN)), is(majorP));
-        assertThat(cursor.getInt(cursor.getColumnIndex(MINOR_PRIORITY_COLUMN)), is(minorP));
-        assertThat(cursor.getInt(cursor.getColumnIndex(RETRY_COUNT_COLUMN)), is(retry));
-        assertThat(cursor.getInt(cursor.getColumnIndex(TIME_CREATED_COLUMN)), is(timeCreated));
-        assertThat(cursor.getInt(cursor.getColumnIndex(REQUIRES_INTERNET_COLUMN)), is(1));
-        assertThat(cursor.getInt(cursor.getColumnIndex(MAX_RETRIES_COLUMN)), is(maxRetry));
-        assertThat(cursor.getInt(cursor.getColumnIndex(SHOULD_HOLD_COLUMN)), is(1));
+        HashSet<String> types = new HashSet<>();
+        types.add("deflateType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        assertThat(returnedItem.getPayload(), is(payload));
     }
 
     @Test
-    public void testUpdateWorkItemFailure() throws Exception {
-        WorkItemDatabaseHelper mockHelper = mock(WorkItemDatabaseHelper.class);
-        SQLiteDatabase mockDatabase = mock(SQLiteDatabase.class);
+    public void testAddWorkItemSpillsLargePayloadToFile() throws Exception {
+        databaseHelper.close();
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setPayloadSpillThreshold(16);
+        databaseHelper = new WorkItemDatabaseHelper(Robolectric.application, configuration);
+
+        byte[] payload = new byte[64];
+        for (int i=0; i<payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("spillType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPayload(payload, PayloadCodec.RAW);
+        databaseHelper.addNewWorkItem(workItem);
 
-        when(mockHelper.updateWorkItem(Matchers.any(InternalWorkItem.class))).thenCallRealMethod();
+        Cursor cursor = databaseHelper.getReadableDatabase().query(PAYLOAD_TABLE_NAME, null, null, null, null, null, null);
+        cursor.moveToFirst();
+        assertThat(cursor.isNull(cursor.getColumnIndex(PAYLOAD_COLUMN)), is(true));
+        assertThat(cursor.getString(cursor.getColumnIndex(PAYLOAD_FILE_COLUMN)), notNullValue());
+        cursor.close();
 
-        when(mockHelper.getWritableDatabase()).thenReturn(mockDatabase);
-        when(mockDatabase.update(Matchers.anyString(), Matchers.any(ContentValues.class), Matchers.anyString(), Matchers.any(String[].class))).thenReturn(0);
+        HashSet<String> types = new HashSet<>();
+        types.add("spillType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        File payloadFile = returnedItem.getPayloadFile();
+        assertThat(payloadFile.exists(), is(true));
+        assertThat(returnedItem.getPayload(), is(payload));
+
+        assertThat(databaseHelper.deleteWorkItem(returnedItem), is(true));
+        assertThat(payloadFile.exists(), is(false));
+    }
+
+    @Test
+    public void testSharedPayloadFileKeptUntilLastReference() throws Exception {
+        databaseHelper.close();
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setPayloadSpillThreshold(16);
+        databaseHelper = new WorkItemDatabaseHelper(Robolectric.application, configuration);
+
+        byte[] payload = new byte[64];
+        for (int i=0; i<2; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType("sharedType" + i);
+            workItem.setState(WorkItemState.READY);
+            workItem.setPayload(payload, PayloadCodec.RAW);
+            databaseHelper.addNewWorkItem(workItem);
+        }
+
+        HashSet<String> types = new HashSet<>();
+        types.add("sharedType0");
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        File payloadFile = returnedItem.getPayloadFile();
+
+        databaseHelper.deleteWorkItemsWithTaskType("sharedType0");
+        assertThat(payloadFile.exists(), is(true));
+
+        databaseHelper.deleteWorkItemsWithTaskType("sharedType1");
+        assertThat(payloadFile.exists(), is(false));
+    }
+
+    @Test
+    public void testPayloadFileKeptWhenDeleteRollsBack() throws Exception {
+        databaseHelper.close();
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setPayloadSpillThreshold(16);
+        databaseHelper = new WorkItemDatabaseHelper(Robolectric.application, configuration);
 
         InternalWorkItem workItem = new InternalWorkItem();
-        boolean success = mockHelper.updateWorkItem(workItem);
-        assertThat("Failed", success == false);
+        workItem.setTaskType("spillType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPayload(new byte[64], PayloadCodec.RAW);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("spillType");
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        File payloadFile = returnedItem.getPayloadFile();
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            assertThat(databaseHelper.deleteWorkItem(returnedItem), is(true));
+        } finally {
+            db.endTransaction();
+        }
+
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("spillType"), is(1));
+        assertThat(payloadFile.exists(), is(true));
+
+        InternalWorkItem restoredItem = new InternalWorkItem();
+        restoredItem.setId(returnedItem.getId());
+        databaseHelper.loadPayloadOfWorkItem(restoredItem);
+        assertThat(restoredItem.getPayload(), is(new byte[64]));
+    }
+
+    @Test
+    public void testRemoveUnreferencedPayloadFiles() throws Exception {
+        File directory = new File(Robolectric.application.getFilesDir(), "work_item_payloads");
+        String name = new PayloadFileStore(directory).write(new byte[]{1, 2, 3});
+        assertThat(new File(directory, name).exists(), is(true));
+
+        databaseHelper.removeUnreferencedPayloadFiles();
+        assertThat(new File(directory, name).exists(), is(false));
+    }
+
+    @Test
+    public void testUpgradeFromVersionThreeMovesDataToPayload() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        recreateWorkItemTableWithColumns(db, DATA_COLUMN + " TEXT");
+
+        ContentValues values = new ContentValues();
+        values.put(TASK_TYPE_COLUMN, "oldType");
+        values.put(STATE_COLUMN, WorkItemState.READY.value());
+        values.put(DATA_COLUMN, "{\"key\":\"value\"}");
+        db.insert(WORK_ITEM_TABLE_NAME, null, values);
+
+        databaseHelper.onUpgrade(db, 3, DATABASE_VERSION);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("oldType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        assertThat(returnedItem.getPayloadCodec(), is(PayloadCodec.JSON));
+        assertThat(returnedItem.getData(), is("{\"key\":\"value\"}"));
+        assertThat(returnedItem.getJsonData().toString(), is("{\"key\":\"value\"}"));
+    }
+
+    @Test
+    public void testUpgradeFromVersionFiveMovesPayloadToPayloadTable() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        recreateWorkItemTableWithColumns(db, PAYLOAD_COLUMN + " BLOB, " + PAYLOAD_CODEC_COLUMN + " INTEGER, " + PAYLOAD_FILE_COLUMN + " TEXT");
+
+        ContentValues values = new ContentValues();
+        values.put(TASK_TYPE_COLUMN, "oldType");
+        values.put(STATE_COLUMN, WorkItemState.READY.value());
+        values.put(PAYLOAD_COLUMN, new byte[]{4, 5, 6});
+        values.put(PAYLOAD_CODEC_COLUMN, PayloadCodec.RAW.value());
+        long id = db.insert(WORK_ITEM_TABLE_NAME, null, values);
+
+        databaseHelper.onUpgrade(db, 5, DATABASE_VERSION);
+
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + WORK_ITEM_TABLE_NAME + ")", null);
+        while (cursor.moveToNext()) {
+            assertThat(cursor.getString(cursor.getColumnIndex("name")).startsWith(PAYLOAD_COLUMN), is(false));
+        }
+        cursor.close();
+
+        HashSet<String> types = new HashSet<>();
+        types.add("oldType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        assertThat(returnedItem.getId(), is((int) id));
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        assertThat(returnedItem.getPayload(), is(new byte[]{4, 5, 6}));
+
+        assertThat(databaseHelper.deleteWorkItem(returnedItem), is(true));
+        Cursor payloadCursor = payloadCursorForWorkItemId((int) id);
+        assertThat(payloadCursor.getCount(), is(0));
+        payloadCursor.close();
+    }
+
+    @Test
+    public void testPayloadNotLoadedUntilRequested() throws Exception {
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("lazyType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setData("lazyData");
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("lazyType");
+
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        assertThat(returnedItem.isPayloadLoaded(), is(false));
+        assertThat(returnedItem.getData(), nullValue());
+
+        databaseHelper.loadPayloadOfWorkItem(returnedItem);
+        assertThat(returnedItem.isPayloadLoaded(), is(true));
+        assertThat(returnedItem.getData(), is("lazyData"));
     }
 
     @Test
@@ -240,10 +472,10 @@ public class WorkItemDatabaseHelperTest
 
     //endregion
 
-    //region Test getNextWorkItem
+    //region Test claimNextWorkItems
 
     @Test
-    public void testGetNextWorkItemNoneReady() throws Exception {
+    public void testClaimNextWorkItemNoneReady() throws Exception {
         String type = "testType";
 
         InternalWorkItem testItem1 = new InternalWorkItem();
@@ -259,13 +491,13 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<String>();
         types.add(type);
-        InternalWorkItem nextItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextItem = claimNextWorkItem(types, false);
 
         assertThat(nextItem, nullValue());
     }
 
     @Test
-    public void testGetNextWorkItemNoRecognizedTypes() throws Exception {
+    public void testClaimNextWorkItemNoRecognizedTypes() throws Exception {
         String type = "testType";
 
         InternalWorkItem testItem1 = new InternalWorkItem();
@@ -281,13 +513,13 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<String>();
         types.add("Different Type");
-        InternalWorkItem nextItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextItem = claimNextWorkItem(types, false);
 
         assertThat(nextItem, nullValue());
     }
 
     @Test
-    public void testGetNextWorkItemOnlyProvidedType() throws Exception {
+    public void testClaimNextWorkItemOnlyProvidedType() throws Exception {
         String typeA = "testA";
         String typeB = "typeB";
         String firstData = "firstData";
@@ -309,18 +541,19 @@ public class WorkItemDatabaseHelperTest
         HashSet<String> types = new HashSet<>();
         types.add(typeA);
 
-        InternalWorkItem nextItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextItem = claimNextWorkItem(types, false);
         assertThat(nextItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextItem);
         assertThat(nextItem.getData(), is(testItem1.getData()));
 
         databaseHelper.deleteWorkItem(nextItem);
 
-        InternalWorkItem secondReturnedItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem secondReturnedItem = claimNextWorkItem(types, false);
         assertThat(secondReturnedItem, nullValue());
     }
 
     @Test
-    public void testGetNextWorkItemSingleHighestPriority() throws Exception {
+    public void testClaimNextWorkItemSingleHighestPriority() throws Exception {
         String taskType = "taskTypea";
         String lowPriorityData = "lowPriorityDat";
         String highPriorityData = "highPriority";
@@ -347,13 +580,14 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<>();
         types.add(taskType);
-        InternalWorkItem nextWorkItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextWorkItem = claimNextWorkItem(types, false);
         assertThat(nextWorkItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextWorkItem);
         assertThat(nextWorkItem.getData(), is(highPriorityData));
     }
 
     @Test
-    public void testGetNextWorkItemMultipleHighestPrioritySingleHighestMinorPriority() throws Exception {
+    public void testClaimNextWorkItemMultipleHighestPrioritySingleHighestMinorPriority() throws Exception {
         String taskType = "taskTypea";
         String lowPriorityData = "lowPriorityDat";
         String highPriorityData = "highPriority";
@@ -381,13 +615,14 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<>();
         types.add(taskType);
-        InternalWorkItem nextWorkItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextWorkItem = claimNextWorkItem(types, false);
         assertThat(nextWorkItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextWorkItem);
         assertThat(nextWorkItem.getData(), is(highPriorityData));
     }
 
     @Test
-    public void testGetNextWorkItemMultipleHighestPriorityMultipleHighestMinorPrioritySingleLowestRetryCount() throws Exception {
+    public void testClaimNextWorkItemMultipleHighestPriorityMultipleHighestMinorPrioritySingleLowestRetryCount() throws Exception {
         String taskType = "taskTypea";
         String lowPriorityData = "lowPriorityDat";
         String highPriorityData = "highPriority";
@@ -417,13 +652,14 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<>();
         types.add(taskType);
-        InternalWorkItem nextWorkItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextWorkItem = claimNextWorkItem(types, false);
         assertThat(nextWorkItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextWorkItem);
         assertThat(nextWorkItem.getData(), is(highPriorityData));
     }
 
     @Test
-    public void testGetNextWorkItemMultipleHighestPriorityMultipleHighestMinorPrioritySingleMultipleLowestRetryCountSingleMostRecent() throws Exception {
+    public void testClaimNextWorkItemMultipleHighestPriorityMultipleHighestMinorPrioritySingleMultipleLowestRetryCountSingleMostRecent() throws Exception {
         String taskType = "taskTypea";
         String lowPriorityData = "lowPriorityDat";
         String highPriorityData = "highPriority";
@@ -455,13 +691,14 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<>();
         types.add(taskType);
-        InternalWorkItem nextWorkItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextWorkItem = claimNextWorkItem(types, false);
         assertThat(nextWorkItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextWorkItem);
         assertThat(nextWorkItem.getData(), is(highPriorityData));
     }
 
     @Test
-    public void testGetNextWorkItemNoInternetRequiresInternet() throws Exception {
+    public void testClaimNextWorkItemNoInternetRequiresInternet() throws Exception {
         String taskType = "taskTypea";
         String lowPriorityData = "lowPriorityDat";
         String highPriorityData = "highPriority";
@@ -488,20 +725,704 @@ public class WorkItemDatabaseHelperTest
 
         HashSet<String> types = new HashSet<>();
         types.add(taskType);
-        InternalWorkItem nextWorkItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem nextWorkItem = claimNextWorkItem(types, false);
         assertThat(nextWorkItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(nextWorkItem);
         assertThat(nextWorkItem.getData(), is(lowPriorityData));
 
         databaseHelper.deleteWorkItem(nextWorkItem);
 
-        InternalWorkItem noInternetItem = databaseHelper.getNextWorkItemForTaskTypes(types, false);
+        InternalWorkItem noInternetItem = claimNextWorkItem(types, false);
         assertThat(noInternetItem, nullValue());
 
-        InternalWorkItem internetItem = databaseHelper.getNextWorkItemForTaskTypes(types, true);
+        InternalWorkItem internetItem = claimNextWorkItem(types, true);
         assertThat(internetItem, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(internetItem);
         assertThat(internetItem.getData(), is(highPriorityData));
     }
 
+    @Test
+    public void testClaimNextWorkItem() throws Exception {
+        String taskType = "taskTypea";
+
+        InternalWorkItem lowPriorityItem = new InternalWorkItem();
+        lowPriorityItem.setTaskType(taskType);
+        lowPriorityItem.setData("low");
+        lowPriorityItem.setState(WorkItemState.READY);
+        lowPriorityItem.setMajorPriority(5);
+
+        InternalWorkItem highPriorityItem = new InternalWorkItem();
+        highPriorityItem.setTaskType(taskType);
+        highPriorityItem.setData("high");
+        highPriorityItem.setState(WorkItemState.READY);
+        highPriorityItem.setMajorPriority(50);
+
+        databaseHelper.addNewWorkItem(lowPriorityItem);
+        databaseHelper.addNewWorkItem(highPriorityItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        InternalWorkItem firstClaimed = claimNextWorkItem(types, false);
+        assertThat(firstClaimed, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(firstClaimed);
+        assertThat(firstClaimed.getData(), is("high"));
+        assertThat(firstClaimed.getState(), is(WorkItemState.EXECUTING));
+
+        InternalWorkItem secondClaimed = claimNextWorkItem(types, false);
+        assertThat(secondClaimed, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(secondClaimed);
+        assertThat(secondClaimed.getData(), is("low"));
+
+        assertThat(claimNextWorkItem(types, false), nullValue());
+
+        String[] args = {"" + WorkItemState.EXECUTING.value()};
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, STATE_COLUMN + " == ?", args, null, null, null);
+        assertThat(cursor.getCount(), is(2));
+        cursor.close();
+    }
+
+    @Test
+    public void testClaimSeesWritesAfterReadyIndexLoaded() throws Exception {
+        String taskType = "taskTypea";
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        assertThat(databaseHelper.claimNextWorkItems(types, false, 4).size(), is(0));
+
+        InternalWorkItem lowPriorityItem = new InternalWorkItem();
+        lowPriorityItem.setTaskType(taskType);
+        lowPriorityItem.setState(WorkItemState.READY);
+        lowPriorityItem.setMajorPriority(1);
+        databaseHelper.addNewWorkItem(lowPriorityItem);
+
+        InternalWorkItem otherItem = new InternalWorkItem();
+        otherItem.setTaskType("otherType");
+        otherItem.setState(WorkItemState.READY);
+        otherItem.setMajorPriority(5);
+        databaseHelper.addNewWorkItem(otherItem);
+
+        databaseHelper.changePriorityOfTaskType("otherType", 0);
+        types.add("otherType");
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 1);
+        assertThat(claimed.size(), is(1));
+        assertThat(claimed.get(0).getTaskType(), is(taskType));
+
+        assertThat(databaseHelper.retryFailedWorkItem(claimed.get(0)), is(true));
+        claimed = databaseHelper.claimNextWorkItems(types, false, 4);
+        assertThat(claimed.size(), is(2));
+        assertThat(claimed.get(0).getTaskType(), is(taskType));
+        assertThat(claimed.get(0).getRetryCount(), is(1));
+    }
+
+    @Test
+    public void testClaimSkipsStaleReadyIndexEntries() throws Exception {
+        String taskType = "taskTypea";
+        for (int i=0; i<3; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType(taskType);
+            workItem.setState(WorkItemState.READY);
+            workItem.setMajorPriority(i);
+            databaseHelper.addNewWorkItem(workItem);
+        }
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+        assertThat(databaseHelper.claimNextWorkItems(types, false, 1).get(0).getMajorPriority(), is(2));
+
+        // Changed behind the helper's back, the index still thinks this work item is READY.
+        String[] args = {"1"};
+        ContentValues values = new ContentValues();
+        values.put(STATE_COLUMN, WorkItemState.HOLDING.value());
+        databaseHelper.getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, MAJOR_PRIORITY_COLUMN + " == ?", args);
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 4);
+        assertThat(claimed.size(), is(1));
+        assertThat(claimed.get(0).getMajorPriority(), is(0));
+    }
+
+    @Test
+    public void testClaimMoreWorkItemsThanFitInOneStatement() throws Exception {
+        ArrayList<InternalWorkItem> workItems = new ArrayList<>();
+        for (int i=0; i<1200; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType("bulkType");
+            workItem.setState(WorkItemState.READY);
+            workItems.add(workItem);
+        }
+        databaseHelper.addNewWorkItems(workItems);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("bulkType");
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 1100);
+        assertThat(claimed.size(), is(1100));
+
+        String[] args = {"" + WorkItemState.EXECUTING.value()};
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, STATE_COLUMN + " == ?", args, null, null, null);
+        assertThat(cursor.getCount(), is(1100));
+        cursor.close();
+    }
+
+    @Test
+    public void testClaimNextWorkItemsRespectsLimitByTaskType() throws Exception {
+        for (int i=0; i<4; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType("limitedType");
+            workItem.setState(WorkItemState.READY);
+            workItem.setMajorPriority(10 + i);
+            databaseHelper.addNewWorkItem(workItem);
+        }
+        InternalWorkItem otherItem = new InternalWorkItem();
+        otherItem.setTaskType("otherType");
+        otherItem.setState(WorkItemState.READY);
+        otherItem.setMajorPriority(0);
+        databaseHelper.addNewWorkItem(otherItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("limitedType");
+        types.add("otherType");
+        HashMap<String, Integer> limitByTaskType = new HashMap<>();
+        limitByTaskType.put("limitedType", 2);
+
+        // Load the index, then make its top entry stale so the claim has to go around twice.
+        HashSet<String> unusedTypes = new HashSet<>();
+        unusedTypes.add("unusedType");
+        assertThat(databaseHelper.claimNextWorkItems(unusedTypes, false, 1).size(), is(0));
+        String[] args = {"13"};
+        ContentValues values = new ContentValues();
+        values.put(STATE_COLUMN, WorkItemState.HOLDING.value());
+        databaseHelper.getWritableDatabase().update(WORK_ITEM_TABLE_NAME, values, MAJOR_PRIORITY_COLUMN + " == ?", args);
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, limitByTaskType, false, 4);
+        assertThat(claimed.size(), is(3));
+        assertThat(claimed.get(0).getMajorPriority(), is(12));
+        assertThat(claimed.get(1).getMajorPriority(), is(11));
+        assertThat(claimed.get(2).getTaskType(), is("otherType"));
+    }
+
+    @Test
+    public void testClaimSkipsWorkItemsThatAreNotDue() throws Exception {
+        String taskType = "taskTypea";
+        long notBefore = System.currentTimeMillis() + 60 * 60 * 1000;
+
+        InternalWorkItem deferredItem = new InternalWorkItem();
+        deferredItem.setTaskType(taskType);
+        deferredItem.setState(WorkItemState.READY);
+        deferredItem.setMajorPriority(10);
+        deferredItem.setNotBefore(notBefore);
+        databaseHelper.addNewWorkItem(deferredItem);
+
+        InternalWorkItem dueItem = new InternalWorkItem();
+        dueItem.setTaskType(taskType);
+        dueItem.setState(WorkItemState.READY);
+        dueItem.setMajorPriority(1);
+        dueItem.setNotBefore(System.currentTimeMillis() - 1000);
+        databaseHelper.addNewWorkItem(dueItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 4);
+        assertThat(claimed.size(), is(1));
+        assertThat(claimed.get(0).getId(), is(dueItem.getId()));
+
+        assertThat(databaseHelper.timeOfNextDeferredWorkItem(), is(notBefore));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType(taskType), is(2));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, DEFAULT_ID_COLUMN + " == ?", new String[]{"" + deferredItem.getId()}, null, null, null);
+        cursor.moveToFirst();
+        assertThat(cursor.getLong(cursor.getColumnIndex(NOT_BEFORE_COLUMN)), is(notBefore));
+        cursor.close();
+    }
+
+    @Test
+    public void testClaimNextWorkItemsInPriorityOrder() throws Exception {
+        String taskType = "taskTypea";
+
+        for (int i=0; i<10; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType(taskType);
+            workItem.setData("" + i);
+            workItem.setState(WorkItemState.READY);
+            workItem.setMajorPriority(i);
+            databaseHelper.addNewWorkItem(workItem);
+        }
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 4);
+        assertThat(claimed.size(), is(4));
+        for (int i=0; i<4; i++) {
+            databaseHelper.loadPayloadOfWorkItem(claimed.get(i));
+            assertThat(claimed.get(i).getData(), is("" + (9-i)));
+            assertThat(claimed.get(i).getState(), is(WorkItemState.EXECUTING));
+        }
+
+        ArrayList<InternalWorkItem> remaining = databaseHelper.claimNextWorkItems(types, false, 20);
+        assertThat(remaining.size(), is(6));
+        databaseHelper.loadPayloadOfWorkItem(remaining.get(0));
+        assertThat(remaining.get(0).getData(), is("5"));
+
+        assertThat(databaseHelper.claimNextWorkItems(types, false, 4).size(), is(0));
+    }
+
+    @Test
+    public void testReleaseClaimedWorkItem() throws Exception {
+        String taskType = "taskTypea";
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(taskType);
+        workItem.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        assertThat(databaseHelper.releaseClaimedWorkItem(claimed), is(true));
+        assertThat(claimed.getState(), is(WorkItemState.READY));
+
+        InternalWorkItem claimedAgain = claimNextWorkItem(types, false);
+        assertThat(claimedAgain, notNullValue());
+        assertThat(claimedAgain.getId(), is(claimed.getId()));
+    }
+
+    @Test
+    public void testWriteAheadLoggingHelper() throws Exception {
+        databaseHelper.close();
+        TaskManagerConfiguration configuration = new TaskManagerConfiguration();
+        configuration.setUseWriteAheadLogging(true);
+        databaseHelper = new WorkItemDatabaseHelper(Robolectric.application, configuration);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("walType");
+        workItem.setState(WorkItemState.READY);
+
+        assertThat(databaseHelper.addNewWorkItem(workItem), is(true));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("walType"), is(1));
+
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        assertThat(db.isWriteAheadLoggingEnabled(), is(true));
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        assertThat(cursor.moveToFirst(), is(true));
+        assertThat(cursor.getString(0).toLowerCase(), is("wal"));
+        cursor.close();
+    }
+
+    @Test
+    public void testRetryFailedWorkItem() throws Exception {
+        String taskType = "taskTypea";
+        String data = "payload";
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(taskType);
+        workItem.setData(data);
+        workItem.setState(WorkItemState.READY);
+        workItem.setRetryCount(1);
+        workItem.setMaxRetries(5);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        claimed.setData("changed in memory only");
+        assertThat(databaseHelper.retryFailedWorkItem(claimed), is(true));
+        assertThat(databaseHelper.retryFailedWorkItem(claimed), is(false));
+
+        // Only a READY work item can be claimed again.
+        InternalWorkItem retried = claimNextWorkItem(types, false);
+        assertThat(retried, notNullValue());
+        databaseHelper.loadPayloadOfWorkItem(retried);
+        assertThat(retried.getRetryCount(), is(2));
+        assertThat(retried.getMaxRetries(), is(5));
+        assertThat(retried.getData(), is(data));
+    }
+
+    @Test
+    public void testRetryFailedWorkItemWithBackoff() throws Exception {
+        String taskType = "taskTypea";
+        BackoffPolicy backoffPolicy = BackoffPolicy.exponential(1000, 60000);
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(taskType);
+        workItem.setState(WorkItemState.READY);
+        workItem.setMaxRetries(5);
+        workItem.setBackoffPolicy(backoffPolicy);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        assertThat(claimed.getBackoffPolicy(), is(backoffPolicy));
+
+        long notBefore = System.currentTimeMillis() + 60 * 60 * 1000;
+        claimed.setNotBefore(notBefore);
+        assertThat(databaseHelper.retryFailedWorkItem(claimed), is(true));
+
+        assertThat(claimNextWorkItem(types, false), nullValue());
+        assertThat(databaseHelper.timeOfNextDeferredWorkItem(), is(notBefore));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, DEFAULT_ID_COLUMN + " == ?", new String[]{"" + claimed.getId()}, null, null, null);
+        cursor.moveToFirst();
+        assertThat(cursor.getLong(cursor.getColumnIndex(NOT_BEFORE_COLUMN)), is(notBefore));
+        assertThat(cursor.getInt(cursor.getColumnIndex(RETRY_COUNT_COLUMN)), is(1));
+        assertThat(cursor.getLong(cursor.getColumnIndex(BACKOFF_DELAY_COLUMN)), is(1000L));
+        cursor.close();
+    }
+
+    @Test
+    public void testHoldFailedWorkItem() throws Exception {
+        String taskType = "taskTypea";
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType(taskType);
+        workItem.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(taskType);
+
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        assertThat(databaseHelper.holdFailedWorkItem(claimed), is(true));
+
+        String[] args = {"" + WorkItemState.HOLDING.value()};
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, STATE_COLUMN + " == ?", args, null, null, null);
+        assertThat(cursor.getCount(), is(1));
+        cursor.moveToFirst();
+        assertThat(cursor.getInt(cursor.getColumnIndex(RETRY_COUNT_COLUMN)), is(1));
+        cursor.close();
+    }
+
+    @Test
+    public void testDependentsRunAfterPrerequisiteCompletes() throws Exception {
+        InternalWorkItem upload = new InternalWorkItem();
+        upload.setTaskType("upload");
+        upload.setState(WorkItemState.READY);
+        InternalWorkItem register = new InternalWorkItem();
+        register.setTaskType("register");
+        register.setState(WorkItemState.READY);
+        register.setPrerequisites(Arrays.asList(upload));
+        InternalWorkItem thumbnail = new InternalWorkItem();
+        thumbnail.setTaskType("thumbnail");
+        thumbnail.setState(WorkItemState.READY);
+        thumbnail.setPrerequisites(Arrays.asList(upload));
+
+        assertThat(databaseHelper.addNewWorkItems(Arrays.asList(upload, register, thumbnail)), is(true));
+        assertThat(register.getState(), is(WorkItemState.BLOCKED));
+        assertThat(thumbnail.getState(), is(WorkItemState.BLOCKED));
+
+        HashSet<String> types = new HashSet<>(Arrays.asList("upload", "register", "thumbnail"));
+
+        ArrayList<InternalWorkItem> claimed = databaseHelper.claimNextWorkItems(types, false, 3);
+        assertThat(claimed.size(), is(1));
+        assertThat(claimed.get(0).getId(), is(upload.getId()));
+
+        assertThat(databaseHelper.completeWorkItem(claimed.get(0)), is(true));
+
+        claimed = databaseHelper.claimNextWorkItems(types, false, 3);
+        assertThat("Both branches run in parallel", claimed.size(), is(2));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(DEPENDENCY_TABLE_NAME, null, null, null, null, null, null);
+        assertThat(cursor.getCount(), is(0));
+        cursor.close();
+    }
+
+    @Test
+    public void testDependentOfCompletedPrerequisiteIsReady() throws Exception {
+        InternalWorkItem completed = new InternalWorkItem();
+        completed.setTaskType("upload");
+        completed.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(completed);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("upload");
+        assertThat(databaseHelper.completeWorkItem(claimNextWorkItem(types, false)), is(true));
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("register");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPrerequisites(Arrays.asList(completed));
+
+        assertThat(databaseHelper.addNewWorkItem(workItem), is(true));
+
+        types.add("register");
+        assertThat(claimNextWorkItem(types, false).getId(), is(workItem.getId()));
+    }
+
+    @Test
+    public void testDependentOfRemovedPrerequisiteIsNotAdded() throws Exception {
+        InternalWorkItem removed = new InternalWorkItem();
+        removed.setTaskType("upload");
+        removed.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(removed);
+        databaseHelper.deleteWorkItemsWithTaskType("upload");
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("register");
+        workItem.setState(WorkItemState.READY);
+        workItem.setPrerequisites(Arrays.asList(removed));
+        assertThat(databaseHelper.addNewWorkItem(workItem), is(false));
+
+        InternalWorkItem dependent = new InternalWorkItem();
+        dependent.setTaskType("register");
+        dependent.setState(WorkItemState.READY);
+        dependent.setPrerequisites(Arrays.asList(removed));
+        InternalWorkItem dependentOfDependent = new InternalWorkItem();
+        dependentOfDependent.setTaskType("notify");
+        dependentOfDependent.setState(WorkItemState.READY);
+        dependentOfDependent.setPrerequisites(Arrays.asList(dependent));
+        InternalWorkItem unrelated = new InternalWorkItem();
+        unrelated.setTaskType("notify");
+        unrelated.setState(WorkItemState.READY);
+
+        assertThat(databaseHelper.addNewWorkItems(Arrays.asList(dependent, dependentOfDependent, unrelated)), is(true));
+        assertThat(dependent.getId(), is(-1));
+        assertThat(dependentOfDependent.getId(), is(-1));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("register"), is(0));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("notify"), is(1));
+
+        HashSet<String> types = new HashSet<>(Arrays.asList("register", "notify"));
+        assertThat(claimNextWorkItem(types, false).getId(), is(unrelated.getId()));
+    }
+
+    @Test
+    public void testDeleteWorkItemDeletesDependents() throws Exception {
+        InternalWorkItem upload = new InternalWorkItem();
+        upload.setTaskType("upload");
+        upload.setState(WorkItemState.READY);
+        InternalWorkItem register = new InternalWorkItem();
+        register.setTaskType("register");
+        register.setState(WorkItemState.READY);
+        register.setPrerequisites(Arrays.asList(upload));
+        InternalWorkItem notify = new InternalWorkItem();
+        notify.setTaskType("notify");
+        notify.setState(WorkItemState.READY);
+        notify.setPrerequisites(Arrays.asList(register));
+        InternalWorkItem unrelated = new InternalWorkItem();
+        unrelated.setTaskType("notify");
+        unrelated.setState(WorkItemState.READY);
+
+        databaseHelper.addNewWorkItems(Arrays.asList(upload, register, notify, unrelated));
+
+        HashSet<String> types = new HashSet<>();
+        types.add("upload");
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        assertThat(databaseHelper.deleteWorkItem(claimed), is(true));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, null, null, null, null, null);
+        assertThat(cursor.getCount(), is(1));
+        cursor.moveToFirst();
+        assertThat(cursor.getInt(cursor.getColumnIndex(DEFAULT_ID_COLUMN)), is(unrelated.getId()));
+        cursor.close();
+
+        cursor = databaseHelper.getReadableDatabase().query(REMOVED_TABLE_NAME, null, null, null, null, null, DEFAULT_ID_COLUMN);
+        assertThat("The work item and both dependents are recorded", cursor.getCount(), is(3));
+        cursor.close();
+
+        InternalWorkItem dependent = new InternalWorkItem();
+        dependent.setTaskType("notify");
+        dependent.setState(WorkItemState.READY);
+        dependent.setPrerequisites(Arrays.asList(notify));
+        assertThat(databaseHelper.addNewWorkItem(dependent), is(false));
+    }
+
+    @Test
+    public void testCompleteWorkItemIsNotRecordedAsRemoved() throws Exception {
+        InternalWorkItem upload = new InternalWorkItem();
+        upload.setTaskType("upload");
+        upload.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(upload);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("upload");
+        assertThat(databaseHelper.completeWorkItem(claimNextWorkItem(types, false)), is(true));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(REMOVED_TABLE_NAME, null, null, null, null, null, null);
+        assertThat(cursor.getCount(), is(0));
+        cursor.close();
+    }
+
+    @Test
+    public void testCoalesceKeepsReadyWorkItem() throws Exception {
+        InternalWorkItem original = new InternalWorkItem();
+        original.setTaskType("refresh");
+        original.setState(WorkItemState.READY);
+        original.setData("original");
+        original.setCoalescingKey("refresh-feed");
+        InternalWorkItem duplicate = new InternalWorkItem();
+        duplicate.setTaskType("refresh");
+        duplicate.setState(WorkItemState.READY);
+        duplicate.setData("duplicate");
+        duplicate.setCoalescingKey("refresh-feed");
+
+        assertThat(databaseHelper.addNewWorkItem(original), is(true));
+        assertThat(databaseHelper.addNewWorkItems(Arrays.asList(duplicate)), is(true));
+        assertThat(duplicate.getId(), is(original.getId()));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("refresh"), is(1));
+
+        HashSet<String> types = new HashSet<>();
+        types.add("refresh");
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(claimed);
+        assertThat(claimed.getData(), is("original"));
+    }
+
+    @Test
+    public void testCoalesceReplacePayloadAndMaxPriority() throws Exception {
+        InternalWorkItem original = new InternalWorkItem();
+        original.setTaskType("refresh");
+        original.setState(WorkItemState.READY);
+        original.setMajorPriority(10);
+        original.setData("original");
+        original.setCoalescingKey("refresh-feed");
+        databaseHelper.addNewWorkItem(original);
+
+        InternalWorkItem newer = new InternalWorkItem();
+        newer.setTaskType("refresh");
+        newer.setState(WorkItemState.READY);
+        newer.setMajorPriority(5);
+        newer.setData("newer");
+        newer.setCoalescingKey("refresh-feed");
+        newer.setCoalescePolicy(CoalescePolicy.REPLACE_PAYLOAD);
+        databaseHelper.addNewWorkItem(newer);
+
+        InternalWorkItem urgent = new InternalWorkItem();
+        urgent.setTaskType("refresh");
+        urgent.setState(WorkItemState.READY);
+        urgent.setMajorPriority(20);
+        urgent.setData("urgent");
+        urgent.setCoalescingKey("refresh-feed");
+        urgent.setCoalescePolicy(CoalescePolicy.MAX_PRIORITY);
+        databaseHelper.addNewWorkItem(urgent);
+
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("refresh"), is(1));
+
+        HashSet<String> types = new HashSet<>();
+        types.add("refresh");
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(claimed);
+        assertThat(claimed.getData(), is("newer"));
+        assertThat(claimed.getMajorPriority(), is(20));
+    }
+
+    @Test
+    public void testCoalesceOnlyWhileReady() throws Exception {
+        InternalWorkItem original = new InternalWorkItem();
+        original.setTaskType("refresh");
+        original.setState(WorkItemState.READY);
+        original.setCoalescingKey("refresh-feed");
+        databaseHelper.addNewWorkItem(original);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("refresh");
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+
+        InternalWorkItem queuedWhileRunning = new InternalWorkItem();
+        queuedWhileRunning.setTaskType("refresh");
+        queuedWhileRunning.setState(WorkItemState.READY);
+        queuedWhileRunning.setCoalescingKey("refresh-feed");
+        assertThat(databaseHelper.addNewWorkItem(queuedWhileRunning), is(true));
+
+        assertThat(queuedWhileRunning.getId() != claimed.getId(), is(true));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("refresh"), is(2));
+
+        Cursor cursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, DEFAULT_ID_COLUMN + " == ?", new String[]{"" + claimed.getId()}, null, null, null);
+        cursor.moveToFirst();
+        assertThat(cursor.isNull(cursor.getColumnIndex(COALESCING_KEY_COLUMN)), is(true));
+        cursor.close();
+    }
+
+    @Test
+    public void testCoalescingKeyIsScopedToTaskType() throws Exception {
+        InternalWorkItem refresh = new InternalWorkItem();
+        refresh.setTaskType("refresh");
+        refresh.setState(WorkItemState.READY);
+        refresh.setMajorPriority(10);
+        refresh.setData("refresh");
+        refresh.setCoalescingKey("feed");
+        databaseHelper.addNewWorkItem(refresh);
+
+        InternalWorkItem upload = new InternalWorkItem();
+        upload.setTaskType("upload");
+        upload.setState(WorkItemState.READY);
+        upload.setMajorPriority(20);
+        upload.setData("upload");
+        upload.setCoalescingKey("feed");
+        upload.setCoalescePolicy(CoalescePolicy.REPLACE_PAYLOAD);
+        assertThat(databaseHelper.addNewWorkItems(Arrays.asList(upload)), is(true));
+
+        assertThat(upload.getId() != refresh.getId(), is(true));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("refresh"), is(1));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("upload"), is(1));
+
+        HashSet<String> types = new HashSet<>();
+        types.add("refresh");
+        InternalWorkItem claimed = claimNextWorkItem(types, false);
+        databaseHelper.loadPayloadOfWorkItem(claimed);
+        assertThat(claimed.getData(), is("refresh"));
+        assertThat(claimed.getMajorPriority(), is(10));
+    }
+
+    @Test
+    public void testUpgradeFromVersionSixAddsNotBefore() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        recreateWorkItemTableWithColumns(db, null);
+        db.execSQL("CREATE TABLE " + PAYLOAD_TABLE_NAME + " ( " + WORK_ITEM_ID_COLUMN + " INTEGER PRIMARY KEY, " + PAYLOAD_COLUMN + " BLOB, " + PAYLOAD_CODEC_COLUMN + " INTEGER, " + PAYLOAD_FILE_COLUMN + " TEXT )");
+
+        ContentValues values = new ContentValues();
+        values.put(TASK_TYPE_COLUMN, "oldType");
+        values.put(STATE_COLUMN, WorkItemState.READY.value());
+        db.insert(WORK_ITEM_TABLE_NAME, null, values);
+
+        databaseHelper.onUpgrade(db, 6, DATABASE_VERSION);
+
+        String[] args = {"index", "work_item_not_before_index"};
+        Cursor cursor = db.rawQuery("select name from sqlite_master where type == ? and name == ?", args);
+        assertThat(cursor.getCount(), is(1));
+        cursor.close();
+
+        HashSet<String> types = new HashSet<>();
+        types.add("oldType");
+        InternalWorkItem returnedItem = claimNextWorkItem(types, false);
+        assertThat(returnedItem.getNotBefore(), is(0L));
+    }
+
+    @Test
+    public void testUpgradeFromVersionTenDropsDispatchIndex() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        String[] args = {"index", DISPATCH_INDEX_NAME};
+
+        Cursor cursor = db.rawQuery("select name from sqlite_master where type == ? and name == ?", args);
+        assertThat("A new database has no dispatch index", cursor.getCount(), is(0));
+        cursor.close();
+
+        db.execSQL("CREATE INDEX " + DISPATCH_INDEX_NAME + " ON " + WORK_ITEM_TABLE_NAME + " ( " + STATE_COLUMN + ", " + TASK_TYPE_COLUMN + " )");
+        databaseHelper.onUpgrade(db, 10, DATABASE_VERSION);
+
+        cursor = db.rawQuery("select name from sqlite_master where type == ? and name == ?", args);
+        assertThat(cursor.getCount(), is(0));
+        cursor.close();
+    }
+
+    @Test
+    public void testUpgradeFromVersionElevenDropsRemovedTrigger() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        String[] args = {"trigger", REMOVED_TABLE_NAME + "_delete"};
+
+        db.execSQL("CREATE TRIGGER " + REMOVED_TABLE_NAME + "_delete AFTER DELETE ON " + WORK_ITEM_TABLE_NAME + " BEGIN " +
+                "INSERT OR IGNORE INTO " + REMOVED_TABLE_NAME + " (" + DEFAULT_ID_COLUMN + ") VALUES (OLD." + DEFAULT_ID_COLUMN + "); " +
+                "END");
+        databaseHelper.onUpgrade(db, 11, DATABASE_VERSION);
+
+        Cursor cursor = db.rawQuery("select name from sqlite_master where type == ? and name == ?", args);
+        assertThat(cursor.getCount(), is(0));
+        cursor.close();
+    }
+
     //endregion
 
     //region Test Item Manipulation Methods
@@ -633,7 +1554,7 @@ public class WorkItemDatabaseHelperTest
 
         aCursor.moveToFirst();
         while (!aCursor.isAfterLast()) {
-            String returnedData = aCursor.getString(aCursor.getColumnIndex(DATA_COLUMN));
+            String returnedData = payloadString(aCursor);
             WorkItemState state = WorkItemState.valueOf(aCursor.getInt(aCursor.getColumnIndex(STATE_COLUMN)));
 
             if (returnedData.equals(readyData)) {
@@ -684,7 +1605,7 @@ public class WorkItemDatabaseHelperTest
 
         aCursor.moveToFirst();
         while (!aCursor.isAfterLast()) {
-            String returnedData = aCursor.getString(aCursor.getColumnIndex(DATA_COLUMN));
+            String returnedData = payloadString(aCursor);
             WorkItemState state = WorkItemState.valueOf(aCursor.getInt(aCursor.getColumnIndex(STATE_COLUMN)));
 
             if (returnedData.equals(readyData)) {
@@ -749,6 +1670,60 @@ public class WorkItemDatabaseHelperTest
         assertThat(count, is(3));
     }
 
+    @Test
+    public void testCountsFollowStateChanges() throws Exception {
+        String typeA = "typeA";
+        String typeB = "typeB";
+
+        for (int i=0; i<3; i++) {
+            InternalWorkItem workItem = new InternalWorkItem();
+            workItem.setTaskType(typeA);
+            workItem.setState(WorkItemState.READY);
+            workItem.setMaxRetries(5);
+            databaseHelper.addNewWorkItem(workItem);
+        }
+        InternalWorkItem typeBItem = new InternalWorkItem();
+        typeBItem.setTaskType(typeB);
+        typeBItem.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(typeBItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add(typeA);
+
+        InternalWorkItem held = claimNextWorkItem(types, false);
+        databaseHelper.holdFailedWorkItem(held);
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType(typeA), is(3));
+        assertThat(databaseHelper.countOfWorkItemsNotHolding(), is(3));
+
+        InternalWorkItem finished = claimNextWorkItem(types, false);
+        databaseHelper.deleteWorkItem(finished);
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType(typeA), is(2));
+        assertThat(databaseHelper.countOfWorkItemsNotHolding(), is(2));
+
+        databaseHelper.restartHoldingTasks();
+        assertThat(databaseHelper.countOfWorkItemsNotHolding(), is(3));
+
+        databaseHelper.deleteWorkItemsWithTaskType(typeA);
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType(typeA), is(0));
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType(typeB), is(1));
+        assertThat(databaseHelper.countOfWorkItemsNotHolding(), is(1));
+    }
+
+    @Test
+    public void testUpgradeFromVersionTwoFillsCounts() throws Exception {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("upgradeType");
+        workItem.setState(WorkItemState.READY);
+        databaseHelper.addNewWorkItem(workItem);
+
+        db.execSQL("DROP TABLE " + COUNT_TABLE_NAME);
+        databaseHelper.onUpgrade(db, 2, DATABASE_VERSION);
+
+        assertThat(databaseHelper.countOfWorkItemsWithTaskType("upgradeType"), is(1));
+    }
+
     @Test
     public void testResetDatabase() throws Exception {
         for (int i=0; i<20; i++) {
@@ -769,10 +1744,66 @@ public class WorkItemDatabaseHelperTest
         Cursor aCursor = databaseHelper.getReadableDatabase().query(WORK_ITEM_TABLE_NAME, DEFAULT_COLUMNS, null, null, null, null, null);
         assertThat(aCursor.getCount(), is(0));
     }
+
+    @Test
+    public void testResetDatabaseKeepsNotBeforeIndex() throws Exception {
+        databaseHelper.resetDatabase();
+
+        String[] args = {"index", "work_item_not_before_index"};
+        Cursor cursor = databaseHelper.getReadableDatabase().rawQuery("select name from sqlite_master where type == ? and name == ?", args);
+        assertThat(cursor.getCount(), is(1));
+        cursor.close();
+
+        InternalWorkItem workItem = new InternalWorkItem();
+        workItem.setTaskType("deferredType");
+        workItem.setState(WorkItemState.READY);
+        workItem.setNotBefore(System.currentTimeMillis() + 60 * 1000);
+        databaseHelper.addNewWorkItem(workItem);
+
+        HashSet<String> types = new HashSet<>();
+        types.add("deferredType");
+        assertThat(claimNextWorkItem(types, false), nullValue());
+        assertThat(databaseHelper.timeOfNextDeferredWorkItem(), is(workItem.getNotBefore()));
+    }
     //endregion
 
     //region Helpers
 
+    private InternalWorkItem claimNextWorkItem(Set<String> types, boolean hasInternet) {
+        ArrayList<InternalWorkItem> workItems = databaseHelper.claimNextWorkItems(types, hasInternet, 1);
+        return (workItems.size() > 0) ? workItems.get(0) : null;
+    }
+
+    private String payloadString(Cursor cursor) throws Exception {
+        Cursor payloadCursor = payloadCursorForWorkItemId(cursor.getInt(cursor.getColumnIndex(DEFAULT_ID_COLUMN)));
+        byte[] payload = (payloadCursor.moveToFirst()) ? payloadCursor.getBlob(payloadCursor.getColumnIndex(PAYLOAD_COLUMN)) : null;
+        payloadCursor.close();
+        return (payload != null) ? new String(payload, "UTF-8") : null;
+    }
+
+    private Cursor payloadCursorForWorkItemId(int workItemId) {
+        String[] columns = {PAYLOAD_COLUMN, PAYLOAD_CODEC_COLUMN, PAYLOAD_FILE_COLUMN};
+        String[] args = {"" + workItemId};
+        return databaseHelper.getReadableDatabase().query(PAYLOAD_TABLE_NAME, columns, WORK_ITEM_ID_COLUMN + " == ?", args, null, null, null);
+    }
+
+    private void recreateWorkItemTableWithColumns(SQLiteDatabase db, String payloadColumns) {
+        db.execSQL("DROP TABLE " + WORK_ITEM_TABLE_NAME);
+        db.execSQL("DROP TABLE " + PAYLOAD_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + WORK_ITEM_TABLE_NAME + " ( " +
+                DEFAULT_ID_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                TASK_TYPE_COLUMN + " TEXT, " +
+                STATE_COLUMN + " INTEGER, " +
+                ((payloadColumns != null) ? payloadColumns + ", " : "") +
+                MAJOR_PRIORITY_COLUMN + " INTEGER, " +
+                MINOR_PRIORITY_COLUMN + " INTEGER, " +
+                RETRY_COUNT_COLUMN + " INTEGER, " +
+                TIME_CREATED_COLUMN + " INTEGER, " +
+                REQUIRES_INTERNET_COLUMN + " INTEGER, " +
+                MAX_RETRIES_COLUMN + " INTEGER, " +
+                SHOULD_HOLD_COLUMN + " INTEGER )");
+    }
+
     public static int randInt(int min, int max) {
 
         // Usually this can be a field rather than a method variable
@@ -0,0 +1,109 @@
+package com.zackliston.taskmanager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Config(manifest=Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class WorkerExecutorsTest {
+
+    @Test
+    public void testThreadPoolWithoutVirtualThreads() throws Exception {
+        ExecutorService executorService = WorkerExecutors.newWorkerExecutorService(3, false);
+
+        assertThat(executorService instanceof ThreadPoolExecutor, is(true));
+        assertThat(((ThreadPoolExecutor) executorService).getMaximumPoolSize(), is(3));
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testIdleThreadsTimeOut() throws Exception {
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) WorkerExecutors.newThreadPool(32);
+
+        assertThat(threadPoolExecutor.allowsCoreThreadTimeOut(), is(true));
+        assertThat(threadPoolExecutor.getCorePoolSize(), is(32));
+        assertThat(threadPoolExecutor.getPoolSize(), is(0));
+        threadPoolExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testIdleThreadsAreReusedBelowMaximum() throws Exception {
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) WorkerExecutors.newThreadPool(32);
+        WorkerExecutors.setNumberOfCoreThreads(threadPoolExecutor, 2);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        for (int i = 0; i < 100; i++) {
+            threadPoolExecutor.submit(worker).get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(threadPoolExecutor.getCorePoolSize(), is(2));
+        assertThat(threadPoolExecutor.getPoolSize() <= 2, is(true));
+        threadPoolExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testSetNumberOfCoreThreadsStaysWithinMaximum() throws Exception {
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) WorkerExecutors.newThreadPool(4);
+
+        WorkerExecutors.setNumberOfCoreThreads(threadPoolExecutor, 10);
+        assertThat(threadPoolExecutor.getCorePoolSize(), is(4));
+
+        WorkerExecutors.setNumberOfCoreThreads(threadPoolExecutor, 0);
+        assertThat(threadPoolExecutor.getCorePoolSize(), is(1));
+        threadPoolExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testVirtualThreadsFallBackWhenUnavailable() throws Exception {
+        boolean hasVirtualThreads = WorkerExecutors.newVirtualThreadPerTaskExecutor() != null;
+
+        ExecutorService executorService = WorkerExecutors.newWorkerExecutorService(300, true);
+
+        assertThat(executorService instanceof ThreadPoolExecutor, is(!hasVirtualThreads));
+        if (!hasVirtualThreads) {
+            assertThat(((ThreadPoolExecutor) executorService).getMaximumPoolSize(), is(TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS));
+        }
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testMaximumNumberOfWorkers() throws Exception {
+        ExecutorService executorService = WorkerExecutors.newWorkerExecutorService(300, true);
+        int expected = (executorService instanceof ThreadPoolExecutor) ? TaskManagerConfiguration.DEFAULT_MAX_CONCURRENT_OPERATIONS : 300;
+
+        assertThat(WorkerExecutors.maximumNumberOfWorkers(executorService, 300), is(expected));
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testVirtualThreadExecutorRunsWorkers() throws Exception {
+        ExecutorService executorService = WorkerExecutors.newWorkerExecutorService(1, true);
+        final CountDownLatch latch = new CountDownLatch(2);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+
+        executorService.execute(worker);
+        executorService.execute(worker);
+
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        executorService.shutdownNow();
+    }
+}